@@ -0,0 +1,500 @@
+/*
+Benchmark.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+   Measures simulator throughput without the GUI.
+
+   <pre>
+     java Benchmark [-trials <i>n</i>] [-steady <i>seconds</i>] [-parallel <i>n</i> | -lockstep] [-virtual | -singlethreaded] [-metered] [-intrinsics] [<i>mapfile</i> <i>Creature0</i> <i>Creature1</i> ...]
+     java Benchmark -scheduler
+     java Benchmark -lineofsight
+   </pre>
+
+   e.g.,
+   <pre>
+     java -Djava.awt.headless=true -cp .:darwin.jar Benchmark -trials 10 ns_arena Rover SuperRover
+   </pre>
+
+   Runs the match repeatedly at the fastest speed and reports the
+   number of creature actions executed per wall-clock second, not
+   counting the time to load the map.  With no arguments it runs
+   ns_arena with Rover and SuperRover.  -virtual runs the creatures
+   on virtual threads (Java 21 or later), and implies -metered.
+   -singlethreaded runs them as continuations on the simulation
+   thread (Java 21 or later, with --add-exports
+   java.base/jdk.internal.vm=ALL-UNNAMED), and also implies
+   -metered.  -steady ends
+   a natural selection match once populations have not changed for
+   the given number of virtual seconds (see {@link
+   Simulator#setSteadyStateWindow}).  -parallel lets up to <i>n</i>
+   creatures think at once (see {@link Simulator#setMaxParallelTurns}).
+   -lockstep plays by lockstep rules (see {@link Simulator#setLockstep}).
+   -metered charges creatures by the instructions that they execute
+   instead of by CPU time (see {@link Simulator#setMetering}).
+
+   <p>-intrinsics plays the trials twice, first with Apples,
+   Treasures, and Flytraps on their own threads and then simulated
+   natively by the engine, and compares the startup time and
+   throughput of the two.
+
+   <p>-scheduler runs no match; it times the turn schedulers alone
+   (see {@link TurnScheduler}) on 10, 1000, and 100000 creatures.
+
+   <p>-lineofsight runs no match; it times the search for the first
+   occupied square that observe() performs, scanning square by square
+   and with the {@link OccupancyIndex}, on 1000 x 1000 maps.
+
+   @see Simulator
+   @see Tournament
+ */
+public class Benchmark {
+
+    public final static String SYNTAX_HELP =
+        "java Benchmark [-trials n] [-steady seconds] [-parallel n | -lockstep] [-virtual | -singlethreaded] [-metered] [-intrinsics] [mapfile Creature0 Creature1 ...]\n" +
+        "       java Benchmark -scheduler\n" +
+        "       java Benchmark -lineofsight";
+
+    /** Summary of one completed match, or of several (see runMatches). */
+    static private class Trial {
+        /** Wall-clock nanoseconds to construct the Simulator and load the map */
+        public long   loadTime;
+
+        /** Wall-clock nanoseconds from the end of loading to the result */
+        public long   runTime;
+
+        /** Total creature actions taken in the match */
+        public long   actions;
+
+        public Simulator.Result result;
+
+        public double actionsPerSecond() {
+            return actions / (runTime / (double)Simulator.SECONDS);
+        }
+    }
+
+
+    /** Plays one match to completion at the fastest speed. */
+    static private Trial runTrial(String mapName, Class[] creatures) {
+        final Trial trial = new Trial();
+
+        final long start = System.nanoTime();
+        final Simulator simulator = new Simulator(mapName, creatures);
+        trial.loadTime = System.nanoTime() - start;
+
+        simulator.setIntraTurnTime(0);
+        final long runStart = System.nanoTime();
+
+        Simulator.Result result = simulator.getResult();
+        while (result == null) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {}
+            result = simulator.getResult();
+        }
+        trial.runTime = System.nanoTime() - runStart;
+
+        // The simulation thread stops the match itself after the turn
+        // that produced the result.  Stopping it from here could
+        // interrupt it in the middle of that turn.
+        try {
+            simulator.join();
+        } catch (InterruptedException e) {}
+
+        trial.result = result;
+        for (Map.Entry<Class, Simulator.Species> entry : result.speciesStats.entrySet()) {
+            trial.actions += entry.getValue().totalActions();
+        }
+
+        return trial;
+    }
+
+
+    /** Runs numTrials matches and prints per-trial and aggregate
+        throughput.  Returns the mean load time and the total actions
+        and run time. */
+    static private Trial runMatches(String mapName, Class[] creatures, int numTrials) {
+        long totalActions = 0;
+        long totalRunTime = 0;
+        long totalLoadTime = 0;
+
+        for (int t = 0; t < numTrials; ++t) {
+            final Trial trial = runTrial(mapName, creatures);
+            totalActions  += trial.actions;
+            totalRunTime  += trial.runTime;
+            totalLoadTime += trial.loadTime;
+
+            System.out.println(String.format("Trial %2d: %8d actions in %8.1f ms = %10.0f actions/s  (%s %s)",
+                                             t + 1, trial.actions, trial.runTime / (double)Simulator.MILLISECONDS,
+                                             trial.actionsPerSecond(), trial.result.result, trial.result.why));
+        }
+
+        final Trial summary = new Trial();
+        summary.loadTime = totalLoadTime / numTrials;
+        summary.runTime  = totalRunTime;
+        summary.actions  = totalActions;
+
+        System.out.println();
+        System.out.println(String.format("%s: %d trials, mean load %.1f ms, %.0f actions/s",
+                                         mapName, numTrials,
+                                         summary.loadTime / (double)Simulator.MILLISECONDS,
+                                         summary.actionsPerSecond()));
+        return summary;
+    }
+
+
+    /** Runs the trials with and without the simulator's native
+        Apples, Treasures, and Flytraps and prints the change in
+        startup time and throughput. */
+    static public void compareIntrinsics(String mapName, Class[] creatures, int numTrials) {
+        // Keep class loading and JIT compilation out of the comparison
+        runTrial(mapName, creatures);
+
+        System.out.println("Built-in creatures on threads:");
+        Simulator.setIntrinsicsEnabled(false);
+        final Trial threaded = runMatches(mapName, creatures, numTrials);
+
+        System.out.println();
+        System.out.println("Built-in creatures simulated natively:");
+        Simulator.setIntrinsicsEnabled(true);
+        final Trial intrinsic = runMatches(mapName, creatures, numTrials);
+
+        System.out.println();
+        System.out.println(String.format("%s: load %.1f -> %.1f ms (%.2fx), %.0f -> %.0f actions/s (%.2fx)",
+                                         mapName,
+                                         threaded.loadTime / (double)Simulator.MILLISECONDS,
+                                         intrinsic.loadTime / (double)Simulator.MILLISECONDS,
+                                         threaded.loadTime / (double)intrinsic.loadTime,
+                                         threaded.actionsPerSecond(),
+                                         intrinsic.actionsPerSecond(),
+                                         intrinsic.actionsPerSecond() / threaded.actionsPerSecond()));
+    }
+
+
+    /** Stand-in for a creature in compareSchedulers. */
+    static private class Ticket extends TurnScheduler.Entry {
+        public long time;
+
+        public long getScheduledTime() {
+            return time;
+        }
+    }
+
+
+    /** Action costs, weighted roughly as creatures use them */
+    static private final long[] TURN_COSTS = {
+        Simulator.MOVE_FORWARD_COST, Simulator.MOVE_FORWARD_COST, Simulator.MOVE_FORWARD_COST,
+        Simulator.TURN_COST, Simulator.TURN_COST, Simulator.ATTACK_COST,
+        Simulator.OBSERVE_COST, Simulator.DELAY_COST, Simulator.MOVE_BACKWARD_COST,
+        Simulator.EMIT_PHEROMONE_COST};
+
+    static private Ticket[] makeTickets(int n, Random rnd) {
+        final Ticket[] ticket = new Ticket[n];
+        for (int i = 0; i < n; ++i) {
+            ticket[i] = new Ticket();
+            // Spawn times spread over the first action
+            ticket[i].time = rnd.nextInt((int)Simulator.MOVE_FORWARD_COST);
+        }
+        return ticket;
+    }
+
+    /** Plays numTurns turns the way the simulator used to, with a
+        java.util.PriorityQueue.  Returns elapsed nanoseconds. */
+    static private long timePriorityQueue(int n, int numTurns, long seed) {
+        final Random rnd = new Random(seed);
+        final PriorityQueue<Ticket> queue = new PriorityQueue<Ticket>
+            (n, new Comparator<Ticket>() {
+                public int compare(Ticket a, Ticket b) {
+                    return (a.time < b.time) ? -1 : ((a.time == b.time) ? 0 : 1);
+                }});
+        for (Ticket t : makeTickets(n, rnd)) {
+            queue.add(t);
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < numTurns; ++i) {
+            final Ticket t = queue.peek();
+            t.time += TURN_COSTS[rnd.nextInt(TURN_COSTS.length)];
+            queue.remove(t);
+            queue.add(t);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Plays numTurns turns using scheduler.  Returns elapsed nanoseconds. */
+    static private long timeScheduler(TurnScheduler<Ticket> scheduler, int n, int numTurns, long seed) {
+        final Random rnd = new Random(seed);
+        for (Ticket t : makeTickets(n, rnd)) {
+            scheduler.add(t);
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < numTurns; ++i) {
+            final Ticket t = scheduler.peek();
+            t.time += TURN_COSTS[rnd.nextInt(TURN_COSTS.length)];
+            scheduler.update(t);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Mean nanoseconds per turn for one scheduler over several
+        batches, after a warm-up batch. */
+    static private double timeScheduler(String name, int n) {
+        final int numTurns = Math.max(100000, 10 * n);
+        final int numBatches = 6;
+        long total = 0;
+        for (int b = 0; b <= numBatches; ++b) {
+            final long time;
+            if (name.equals("PriorityQueue")) {
+                time = timePriorityQueue(n, numTurns, b);
+            } else if (name.equals("IndexedHeap")) {
+                time = timeScheduler(new TurnScheduler.IndexedHeap<Ticket>(), n, numTurns, b);
+            } else {
+                time = timeScheduler(new TurnScheduler.CalendarQueue<Ticket>(), n, numTurns, b);
+            }
+            if (b > 0) {
+                total += time;
+            }
+        }
+        return total / (double)(numBatches * (long)numTurns);
+    }
+
+    /** Prints the cost per turn of each turn scheduler, and of the
+        PriorityQueue that they replaced, for small to huge maps. */
+    static public void compareSchedulers() {
+        final String[] name = {"PriorityQueue", "IndexedHeap", "CalendarQueue"};
+        final int[] size = {10, 1000, 100000};
+
+        System.out.println(String.format("%10s %16s %16s %16s", "creatures", name[0], name[1], name[2]));
+        for (int n : size) {
+            final StringBuilder line = new StringBuilder(String.format("%10d", n));
+            for (String s : name) {
+                line.append(String.format(" %11.1f ns/t", timeScheduler(s, n)));
+            }
+            System.out.println(line);
+        }
+    }
+
+
+    static private final int LOS_SIZE = 1000;
+
+    /** A LOS_SIZE x LOS_SIZE map for compareLineOfSight.  "open"
+        has a few scattered walls, "crowded" is 10% full, and
+        "corridors" is a maze of long horizontal corridors in the
+        style of the mz maps. */
+    static private OccupancyIndex makeLineOfSightMap(String style, Random rnd) {
+        final OccupancyIndex index = new OccupancyIndex(LOS_SIZE, LOS_SIZE);
+        for (int y = 0; y < LOS_SIZE; ++y) {
+            for (int x = 0; x < LOS_SIZE; ++x) {
+                final boolean occupied;
+                if (style.equals("open")) {
+                    occupied = rnd.nextInt(1000) < 2;
+                } else if (style.equals("crowded")) {
+                    occupied = rnd.nextInt(10) == 0;
+                } else {
+                    // Every other row is a wall with rare openings
+                    occupied = ((y & 1) == 1) && (rnd.nextInt(200) != 0);
+                }
+                index.set(x, y, occupied);
+            }
+        }
+        return index;
+    }
+
+    /** The original observe() loop: one square at a time. */
+    static private int linearDistance(OccupancyIndex index, int x, int y, int dx, int dy) {
+        int distance = 0;
+        do {
+            x += dx;
+            y += dy;
+            ++distance;
+        } while ((x >= 0) && (y >= 0) && (x < LOS_SIZE) && (y < LOS_SIZE) &&
+                 ! index.isOccupied(x, y));
+        return distance;
+    }
+
+    /** Prints the cost of finding the first occupied square in front
+        of a creature by scanning and with the OccupancyIndex, for
+        viewers at random empty squares facing random directions. */
+    static public void compareLineOfSight() {
+        final String[] style = {"open", "corridors", "crowded"};
+        final int[] dx = {1, 0, -1, 0};
+        final int[] dy = {0, 1, 0, -1};
+        final int numQueries = 1000000;
+        final int numBatches = 6;
+
+        System.out.println(String.format("%10s %12s %16s %16s", "map", "mean dist", "scan", "index"));
+        for (String s : style) {
+            final Random rnd = new Random(1);
+            final OccupancyIndex index = makeLineOfSightMap(s, rnd);
+
+            final int[] qx = new int[numQueries];
+            final int[] qy = new int[numQueries];
+            final int[] qd = new int[numQueries];
+            for (int q = 0; q < numQueries; ++q) {
+                do {
+                    qx[q] = rnd.nextInt(LOS_SIZE);
+                    qy[q] = rnd.nextInt(LOS_SIZE);
+                } while (index.isOccupied(qx[q], qy[q]));
+                qd[q] = rnd.nextInt(4);
+            }
+
+            long scanTime = 0, indexTime = 0, scanSum = 0, indexSum = 0;
+            // Batch 0 is warm-up
+            for (int b = 0; b <= numBatches; ++b) {
+                long sum = 0;
+                long start = System.nanoTime();
+                for (int q = 0; q < numQueries; ++q) {
+                    sum += linearDistance(index, qx[q], qy[q], dx[qd[q]], dy[qd[q]]);
+                }
+                final long scan = System.nanoTime() - start;
+                scanSum = sum;
+
+                sum = 0;
+                start = System.nanoTime();
+                for (int q = 0; q < numQueries; ++q) {
+                    sum += index.distanceToOccupied(qx[q], qy[q], dx[qd[q]], dy[qd[q]]);
+                }
+                final long indexed = System.nanoTime() - start;
+                indexSum = sum;
+
+                if (b > 0) {
+                    scanTime  += scan;
+                    indexTime += indexed;
+                }
+            }
+
+            if (scanSum != indexSum) {
+                System.err.println("Error: OccupancyIndex disagrees with the scan on " + s);
+            }
+
+            final double n = numBatches * (double)numQueries;
+            System.out.println(String.format("%10s %12.1f %11.1f ns/q %11.1f ns/q",
+                                             s, scanSum / (double)numQueries,
+                                             scanTime / n, indexTime / n));
+        }
+    }
+
+
+    public static void main(String[] arg) {
+        int a = 0;
+        int numTrials = 5;
+
+        // Play by the same pheromone limits as Tournament
+        Simulator.setPheromoneLimits(Simulator.TOURNAMENT_MAX_PHEROMONES,
+                                     Simulator.TOURNAMENT_MAX_PHEROMONE_BYTES);
+
+        if ((arg.length > a) && arg[a].toLowerCase().equals("-scheduler")) {
+            compareSchedulers();
+            return;
+        }
+
+        if ((arg.length > a) && arg[a].toLowerCase().equals("-lineofsight")) {
+            compareLineOfSight();
+            return;
+        }
+
+        if ((arg.length > a + 1) && arg[a].toLowerCase().equals("-trials")) {
+            numTrials = Integer.parseInt(arg[a + 1]);
+            a += 2;
+        }
+
+        if ((arg.length > a + 1) && arg[a].toLowerCase().equals("-steady")) {
+            Simulator.setSteadyStateWindow((long)(Double.parseDouble(arg[a + 1]) * Simulator.SECONDS));
+            a += 2;
+        }
+
+        if ((arg.length > a + 1) && arg[a].toLowerCase().equals("-parallel")) {
+            Simulator.setMaxParallelTurns(Integer.parseInt(arg[a + 1]));
+            a += 2;
+        } else if ((arg.length > a) && arg[a].toLowerCase().equals("-lockstep")) {
+            Simulator.setLockstep(true);
+            ++a;
+        }
+
+        if ((arg.length > a) && arg[a].toLowerCase().equals("-virtual")) {
+            Simulator.setExecutionMode(Simulator.ExecutionMode.VIRTUAL_THREADS);
+            ++a;
+        } else if ((arg.length > a) && arg[a].toLowerCase().equals("-singlethreaded")) {
+            Simulator.setExecutionMode(Simulator.ExecutionMode.SINGLE_THREADED);
+            ++a;
+        }
+
+        if ((arg.length > a) && arg[a].toLowerCase().equals("-metered")) {
+            Simulator.setMetering(true);
+            ++a;
+        }
+
+        boolean compare = false;
+        if ((arg.length > a) && arg[a].toLowerCase().equals("-intrinsics")) {
+            compare = true;
+            ++a;
+        }
+
+        String mapName = "ns_arena";
+        String[] creatureClassNames = {"Rover", "SuperRover"};
+        if (arg.length > a) {
+            mapName = arg[a];
+            ++a;
+            if ((mapName.length() > 1) && (mapName.charAt(0) == '-')) {
+                System.err.println("Illegal option: " + mapName);
+                System.err.println("Syntax: " + SYNTAX_HELP);
+                return;
+            }
+
+            if (arg.length > a) {
+                creatureClassNames = new String[arg.length - a];
+                System.arraycopy(arg, a, creatureClassNames, 0, creatureClassNames.length);
+            }
+        }
+
+        final Class[] creatures = new Class[creatureClassNames.length];
+        for (int i = 0; i < creatures.length; ++i) {
+            try {
+                creatures[i] = Simulator.loadClass(creatureClassNames[i], false);
+            } catch (Exception e) {
+                System.err.println("Error while loading " + creatureClassNames[i] + ":\n" + e);
+                System.exit(-1);
+            }
+        }
+
+        System.out.println(Simulator.getVersion());
+        if (compare) {
+            compareIntrinsics(mapName, creatures, numTrials);
+        } else {
+            runMatches(mapName, creatures, numTrials);
+        }
+
+        // Creature threads may still be unwinding
+        System.exit(0);
+    }
+}
@@ -45,6 +45,8 @@ import java.awt.Dimension;
    <li> {@link #delay}
    <li> {@link #emitPheromone}
  </ul>
+ A sequence of moves, turns, attacks, and delays can also be taken
+ as a {@link Plan} with {@link #execute}, which is faster.
 </p>
 
  <p>Example:
@@ -128,6 +130,11 @@ public abstract class Creature implements Entity, Runnable {
     /** Private to prevent the Creature from mutating it. */
     private int id;
 
+    /** Index of this creature's state inside the simulator; -1
+        until spawned.  Private to prevent the Creature from mutating
+        it. */
+    private int slot = -1;
+
     /** Private to prevent the Creature from invoking simulator methods. */
     private Simulator simulator;
 
@@ -174,7 +181,7 @@ public abstract class Creature implements Entity, Runnable {
 
     /** @deprecated Use getGameTime instead */
     final public long getTime() {
-        return simulator.getTime();
+        return simulator.getGameTime(this);
     }
 
     /** Returns the time in virtual nanoseconds since the simulation started.
@@ -187,7 +194,7 @@ public abstract class Creature implements Entity, Runnable {
         @see System#nanoTime()
     */
     final public long getGameTime() {
-        return simulator.getTime();
+        return simulator.getGameTime(this);
     }
 
     /** The time in virtual nanoseconds that this Creature has spent
@@ -209,7 +216,7 @@ public abstract class Creature implements Entity, Runnable {
         @see #getMyTimeSinceSpawn()
     */
     final public long getTurnTime() {
-        return simulator.getTurnTime();
+        return simulator.getTurnTime(this);
     }
 
     /** Subclass constructors must not invoke any of the parent class
@@ -265,11 +272,13 @@ public abstract class Creature implements Entity, Runnable {
         return id;
     }
 
-    /** Create an observation describing this creature.  This is not
-        an action and does not take substantial time. */
+    /** Create an observation describing this creature, including
+        the pheromone at its location.  This is not an action and
+        does not take substantial time; it is faster than calling
+        inFog(), inMud(), shrineClassId(), and getPheromone()
+        separately. */
     public Observation observeSelf() {
-        return new Observation(getPosition(), getClassName(), getClassId(), getId(), getDirection(),
-                               getTime(), inFog(), inMud(), shrineClassId());
+        return simulator.observeSelf(this);
     }
 
     /** Returns the pheromone at this creature's current
@@ -393,21 +402,36 @@ public abstract class Creature implements Entity, Runnable {
         return "(" + point.x + ", " + point.y + ")";
     }
 
+    /** Used by the simulator to find this creature's state without
+        a table lookup. */
+    final int getSlot() {
+        return slot;
+    }
+
     /** The simulation calls this on the creature when it is first added
         to the world.  Do not invoke this yourself. */
-    final synchronized void setSimulator(Simulator s, int _id, int _classId) {
+    final synchronized void setSimulator(Simulator s, int _id, int _classId, int _slot) {
         if (simulator != null) {
             throw new IllegalArgumentException("Cannot invoke setSimulation twice.");
         }
         simulator  = s;
         id         = _id;
         classId    = _classId;
+        slot       = _slot;
         position   = simulator.getPosition(this);
         direction  = simulator.getDirection(this);
         assert position != null;
         assert direction != null;
     }
 
+    /** Called by the simulator after it takes an action for this
+        creature without calling the action method, as it does for
+        the actions of a Plan. */
+    final void updatePose() {
+        position  = simulator.getPosition(this);
+        direction = simulator.getDirection(this);
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //                                                                       //
     //                           The Actions                                 //
@@ -418,36 +442,74 @@ public abstract class Creature implements Entity, Runnable {
     }
 
 
-    /** Execute the delay action n times in a row */
+    /** Execute the delay action n times in a row.  If this class
+        overrides delay(), calls it n times; otherwise executes a
+        Plan, which is faster. */
     protected void delay(int n) {
-        for (int i = 0; i < n; ++i) {
-            delay();
+        final Simulator.Species species = simulator.getSpecies(this);
+        if ((species == null) || species.overridesDelay) {
+            for (int i = 0; i < n; ++i) {
+                delay();
+            }
+        } else {
+            execute(new Plan().delay(n));
         }
     }
 
 
-    /** Execute the moveForward action n times in a row.
+    /** Execute the moveForward action n times in a row, stopping at
+        the first move that fails.  If this class overrides
+        moveForward(), calls it; otherwise executes a Plan, which is
+        faster.
          @return true if it moves all n spaces successfully.*/
     protected boolean moveForward(int n) {
-        for (int i = 0; i < n; ++i) {
-            if (! moveForward()) {
-                return false;
+        final Simulator.Species species = simulator.getSpecies(this);
+        if ((species == null) || species.overridesMoveForward) {
+            for (int i = 0; i < n; ++i) {
+                if (! moveForward()) {
+                    return false;
+                }
             }
+            return true;
+        } else {
+            return execute(new Plan().moveForward(n).stopIfBlocked());
         }
-        return true;
     }
 
 
-    /** Execute the moveBackward action n times in a row.
+    /** Execute the moveBackward action n times in a row, stopping at
+        the first move that fails.  If this class overrides
+        moveBackward(), calls it; otherwise executes a Plan, which is
+        faster.
         @return true if it moves all n spaces successfully.
     */
     protected boolean moveBackward(int n) {
-        for (int i = 0; i < n; ++i) {
-            if (! moveBackward()) {
-                return false;
+        final Simulator.Species species = simulator.getSpecies(this);
+        if ((species == null) || species.overridesMoveBackward) {
+            for (int i = 0; i < n; ++i) {
+                if (! moveBackward()) {
+                    return false;
+                }
             }
+            return true;
+        } else {
+            return execute(new Plan().moveBackward(n).stopIfBlocked());
         }
-        return true;
+    }
+
+
+    /** Take each action of the plan in order, one per turn, until
+        the plan ends or its stop condition is met.  Each action
+        costs exactly what calling it directly would, but this
+        creature's code does not run again until the plan is over,
+        which is much faster than calling the actions one at a time.
+        The simulator takes the actions itself, so a subclass's
+        overrides of the action methods are not called.
+
+        @return true if every action of the plan was taken
+     */
+    protected boolean execute(Plan plan) {
+        return simulator.execute(this, plan);
     }
 
 
@@ -494,6 +556,12 @@ public abstract class Creature implements Entity, Runnable {
     /** Emit a pheromone onto this creature's current location.  Costs
       {@link Simulator#EMIT_PHEROMONE_COST} nanoseconds.
       Pheromones can be sensed with getPheromone().
+
+      <p>Tournaments limit how many distinct strings, and how many
+      characters in total, each species may introduce into a match
+      (see {@link Simulator#setPheromoneLimits}).  Once a species
+      reaches a limit, emitting a string that is not already in the
+      match leaves the square unchanged, at the same cost.
     */
     protected void emitPheromone(String s) {
         simulator.emitPheromone(this, s);
@@ -535,6 +603,39 @@ public abstract class Creature implements Entity, Runnable {
     }
 
 
+    /** Takes the same action as observe() but, instead of
+        allocating a new array of new Observations, overwrites the
+        Observations in <code>buffer</code> in the same order that
+        observe() would return them, and returns how many squares
+        were seen.  Null elements of buffer are filled in on first
+        use, so a creature that keeps one buffer for its whole life
+        creates no garbage by observing.  If more squares are seen
+        than fit, only the first buffer.length (the blocking square
+        and those nearest to it) are stored.
+
+        <p>The Observations, including their position Points, are
+        overwritten by the next call with the same buffer.
+
+        <p>Costs {@link Simulator#OBSERVE_COST} nanoseconds.
+     */
+    protected int observe(Observation[] buffer) {
+        return simulator.observe(this, buffer);
+    }
+
+
+    /** Takes the observe action, but stores only the first element
+        of what observe() would return--the first square that is not
+        EMPTY along the facing direction--in <code>result</code>, and
+        returns its distance from this creature (1 if adjacent).
+        Allocates nothing if result has been used before.
+
+        <p>Costs {@link Simulator#OBSERVE_COST} nanoseconds.
+     */
+    protected int observeAhead(Observation result) {
+        return simulator.observeAhead(this, result);
+    }
+
+
     /** Rotate counter-clockwise 90 degrees.  Costs {@link
       Simulator#TURN_COST} nanoseconds. */
     protected void turnLeft() {
@@ -55,7 +55,7 @@ import java.util.Map;
    Detailed command line:
    Run with:
    <pre>
-    java -cp .:darwin.jar Darwin [-3D | -2D] [-nosecurity] <i>mapfile</i> <i>Creature0</i> <i>Creature1</i> ...
+    java -cp .:darwin.jar Darwin [-3D | -2D] [-nosecurity] [-virtual | -singlethreaded] <i>mapfile</i> <i>Creature0</i> <i>Creature1</i> ...
    </pre>
 
    e.g.,
@@ -75,16 +75,17 @@ import java.util.Map;
 public class Darwin extends JFrame {
 
     public final static String SYNTAX_HELP = 
-        "java Darwin [-3D | -2D] [-nosecurity] mapname Class0 Class1 ...";
-
-    /** Delay time between turns in nanoseconds corresponding to each
-        of the speedButtons. */
-    final static private long[] delayTime = 
-    {100000 * Simulator.MILLISECONDS,
-     150 * Simulator.MILLISECONDS, 
-     15 * Simulator.MILLISECONDS, 
-     1 * Simulator.MILLISECONDS, 
-     0};
+        "java Darwin [-3D | -2D] [-nosecurity] [-virtual | -singlethreaded] mapname Class0 Class1 ...";
+
+    /** Simulation speed in virtual seconds of creature time per
+        wall-clock second corresponding to each of the speedButtons.
+        @see Simulator#setSpeed */
+    final static private double[] speed = 
+    {0,
+     0.001,
+     0.005,
+     0.05,
+     Simulator.UNLIMITED_SPEED};
 
     //////////////////////////////////////////////////////////////////////
 
@@ -94,7 +95,7 @@ public class Darwin extends JFrame {
     private Simulator        simulator;
 
     /** GUI elements for setting delay time. */
-    private JToggleButton[]  speedButton = new JToggleButton[delayTime.length];
+    private JToggleButton[]  speedButton = new JToggleButton[speed.length];
 
     final private JLabel     timeDisplay = new JLabel("0");
 
@@ -421,7 +422,7 @@ public class Darwin extends JFrame {
 
             // Pause:
             speedButton[0].setSelected(true);
-            simulator.setIntraTurnTime(delayTime[0]);
+            simulator.setSpeed(speed[0]);
 
             if (result.species != null) {
                 // Play the victory sound
@@ -532,11 +533,11 @@ public class Darwin extends JFrame {
                     public void actionPerformed(ActionEvent e) {
                         for (int i = 0; i < speedButton.length; ++i) {
                             if (speedButton[i].isSelected()) {
-                                simulator.setIntraTurnTime(delayTime[i]);
+                                simulator.setSpeed(speed[i]);
                             }
                         }
                     }};
-            for (int i = 0; i < delayTime.length; ++i) {
+            for (int i = 0; i < speed.length; ++i) {
                 speedButton[i] = makeToggleToolButton("speed" + i + ".gif");
                 speedButton[i].addActionListener(L);
                 speedGroup.add(speedButton[i]);
@@ -683,6 +684,14 @@ public class Darwin extends JFrame {
             ++a;
         }
 
+        if (arg[a].toLowerCase().equals("-virtual")) {
+            Simulator.setExecutionMode(Simulator.ExecutionMode.VIRTUAL_THREADS);
+            ++a;
+        } else if (arg[a].toLowerCase().equals("-singlethreaded")) {
+            Simulator.setExecutionMode(Simulator.ExecutionMode.SINGLE_THREADED);
+            ++a;
+        }
+
         String mapname = arg[a];
         ++a;
         if ((mapname.length() > 1) && (mapname.charAt(0) == '-')) {
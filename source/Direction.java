@@ -40,55 +40,18 @@ import java.util.Random;
     </pre>
 */
 public enum Direction {
-    NORTH {
-        public Direction left() { return WEST; }
-        public Direction right() { return EAST; }
-        public Direction opposite() { return SOUTH; }
-        public Point forward(Point p, int n, Point overwrite) { 
-            assert p != null;
-            overwrite.x = p.x;
-            overwrite.y = p.y - n;
-            return overwrite; 
-        }
-        public int toInt() { return 0; }
-    },
-
-    WEST {
-        public Direction left() { return SOUTH; }
-        public Direction right() { return NORTH; }
-        public Direction opposite() { return EAST; }
-        public Point forward(Point p, int n, Point overwrite) { 
-            overwrite.x = p.x - n;
-            overwrite.y = p.y;
-            return overwrite;
-        }
-        public int toInt() { return 1; }
-    },
-
-    SOUTH {
-        public Direction left() { return EAST; }
-        public Direction right() { return WEST; }
-        public Direction opposite() { return NORTH; }
-        public Point forward(Point p, int n, Point overwrite) { 
-            overwrite.x = p.x;
-            overwrite.y = p.y + n;
-            return overwrite;
-        }
-        public int toInt() { return 2; }
-        public boolean isHorizontal() { return false; }
-    },
-
-    EAST {
-        public Direction left() { return NORTH; }
-        public Direction right() { return SOUTH; }
-        public Direction opposite() { return WEST; }
-        public Point forward(Point p, int n, Point overwrite) { 
-            overwrite.x = p.x + n;
-            overwrite.y = p.y;
-            return overwrite;
-        }
-        public int toInt() { return 3; }
-    };
+    // Declared in toInt() order, which the tables below follow
+    NORTH, WEST, SOUTH, EAST;
+
+    /** Indexed by toInt().  Lookup tables rather than overridden
+        methods, so that the simulator's calls to these are
+        monomorphic. */
+    final static private int[]       DX       = { 0, -1, 0, +1};
+    final static private int[]       DY       = {-1,  0, +1, 0};
+    final static private Direction[] LEFT     = {WEST, SOUTH, EAST, NORTH};
+    final static private Direction[] RIGHT    = {EAST, NORTH, WEST, SOUTH};
+    final static private Direction[] OPPOSITE = {SOUTH, EAST, NORTH, WEST};
+    final static private Direction[] ALL      = values();
 
     final static private Random rnd = new Random();
 
@@ -147,11 +110,27 @@ public enum Direction {
 
 
     /** The direction 90-degrees to the left. */
-    public abstract Direction left();
+    public Direction left() {
+        return LEFT[ordinal()];
+    }
 
 
     /** The direction 90-degrees to the right. */
-    public abstract Direction right();
+    public Direction right() {
+        return RIGHT[ordinal()];
+    }
+
+
+    /** Change in x of one step forward: -1, 0, or +1. */
+    public int dx() {
+        return DX[ordinal()];
+    }
+
+
+    /** Change in y of one step forward: -1, 0, or +1. */
+    public int dy() {
+        return DY[ordinal()];
+    }
 
 
     /** True for East and West */
@@ -199,7 +178,9 @@ public enum Direction {
 
 
     /** Returns the direction 180 degrees from this one.*/
-    public abstract Direction opposite();
+    public Direction opposite() {
+        return OPPOSITE[ordinal()];
+    }
 
 
     /** The point one step forward in this direction. */
@@ -213,19 +194,24 @@ public enum Direction {
 
     /** Computes the point <i>n</i> steps forward in this direction,
       saves it to overwrite, and then returns overwrite. */
-    public abstract Point forward(Point p, int n, Point overwrite);
+    public Point forward(Point p, int n, Point overwrite) {
+        assert p != null;
+        final int i = ordinal();
+        overwrite.x = p.x + DX[i] * n;
+        overwrite.y = p.y + DY[i] * n;
+        return overwrite;
+    }
 
 
-    /** Returns a number between 0 and 3: NORTH = 0, EAST = 1, ...  */
-    public abstract int toInt();
+    /** Returns a number between 0 and 3: NORTH = 0, WEST = 1, ...  */
+    public int toInt() {
+        return ordinal();
+    }
 
     public static Direction fromInt(int i) {
-        switch (i) {
-        case 0: return NORTH;
-        case 1: return WEST;
-        case 2: return SOUTH;
-        case 3: return EAST;
-        default:
+        if ((i >= 0) && (i < ALL.length)) {
+            return ALL[i];
+        } else {
             assert false : "Illegal direction int";
             return NORTH;
         }
@@ -0,0 +1,197 @@
+/*
+FreeCellIndex.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+import java.awt.Point;
+
+/**
+ Tracks the free squares of a map--those that are neither occupied
+ nor reserved (e.g., by a shrine)--so that a uniformly random free
+ square can be chosen directly instead of by trial and error.
+
+ <p>The map is divided into CHUNK_SIZE x CHUNK_SIZE chunks, each with
+ a bit mask per row, and a Fenwick tree holds the number of free
+ squares in every chunk.  Updates and {@link #select} cost O(log
+ chunks), so selection always succeeds when there is a free square
+ no matter how crowded the map is.  Chunks that are entirely free
+ are not allocated.
+
+ <p>The simulator marks squares occupied from every change to its
+ map and reserves shrines as they are loaded.  Code that places
+ things at random should choose from this index rather than sampling
+ the map.
+ */
+public class FreeCellIndex {
+    static private final int CHUNK_SHIFT = 5;
+    static private final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+    static private final int CHUNK_MASK  = CHUNK_SIZE - 1;
+
+    private final int     width;
+    private final int     height;
+    private final int     chunksWide;
+    private final int     numChunks;
+
+    /** For each chunk, null if every square in it is free,
+        otherwise CHUNK_SIZE occupied row masks followed by
+        CHUNK_SIZE reserved row masks.  Bit i of row r is the square
+        in column i of row r of the chunk. */
+    private final int[][] mask;
+
+    /** Fenwick tree (1-based) of the number of free squares in each chunk */
+    private final int[]   tree;
+
+    private int           numFree;
+
+    /** All squares are initially free. */
+    public FreeCellIndex(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        chunksWide  = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+        numChunks   = chunksWide * ((height + CHUNK_MASK) >> CHUNK_SHIFT);
+        mask        = new int[numChunks][];
+        tree        = new int[numChunks + 1];
+        numFree     = width * height;
+
+        // Build the tree in linear time
+        for (int c = 0; c < numChunks; ++c) {
+            final int x0 = (c % chunksWide) << CHUNK_SHIFT;
+            final int y0 = (c / chunksWide) << CHUNK_SHIFT;
+            final int i = c + 1;
+            tree[i] += Math.min(CHUNK_SIZE, width - x0) * Math.min(CHUNK_SIZE, height - y0);
+            final int parent = i + (i & -i);
+            if (parent <= numChunks) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    private int chunk(int x, int y) {
+        return (x >> CHUNK_SHIFT) + (y >> CHUNK_SHIFT) * chunksWide;
+    }
+
+    /** Number of free squares */
+    public int size() {
+        return numFree;
+    }
+
+    /** (x, y) must be in bounds */
+    public boolean isFree(int x, int y) {
+        final int[] m = mask[chunk(x, y)];
+        if (m == null) {
+            return true;
+        }
+        final int row = y & CHUNK_MASK;
+        return (((m[row] | m[CHUNK_SIZE + row]) >>> (x & CHUNK_MASK)) & 1) == 0;
+    }
+
+    /** Marks (x, y), which must be in bounds, as holding something. */
+    public void setOccupied(int x, int y, boolean occupied) {
+        set(x, y, 0, occupied);
+    }
+
+    /** Marks (x, y), which must be in bounds, as unavailable even
+        when empty. */
+    public void setReserved(int x, int y, boolean reserved) {
+        set(x, y, CHUNK_SIZE, reserved);
+    }
+
+    private void set(int x, int y, int base, boolean value) {
+        final int c = chunk(x, y);
+        int[] m = mask[c];
+        if (m == null) {
+            if (! value) {
+                return;
+            }
+            m = mask[c] = new int[2 * CHUNK_SIZE];
+        }
+
+        final int row = y & CHUNK_MASK;
+        final int bit = 1 << (x & CHUNK_MASK);
+        final boolean wasFree = ((m[row] | m[CHUNK_SIZE + row]) & bit) == 0;
+        if (value) {
+            m[base + row] |= bit;
+        } else {
+            m[base + row] &= ~bit;
+        }
+        final boolean isFree = ((m[row] | m[CHUNK_SIZE + row]) & bit) == 0;
+
+        if (wasFree != isFree) {
+            final int delta = isFree ? 1 : -1;
+            numFree += delta;
+            for (int i = c + 1; i <= numChunks; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+    }
+
+    /** Stores in result the n'th free square, 0 <= n < size(), in an
+        order fixed by the current contents of the map.  A uniformly
+        random n therefore selects a uniformly random free square.
+        @return result */
+    public Point select(int n, Point result) {
+        if ((n < 0) || (n >= numFree)) {
+            throw new IndexOutOfBoundsException(n + " of " + numFree + " free squares");
+        }
+
+        // Descend the tree to the chunk holding the n'th free square
+        int c = 0;
+        for (int step = Integer.highestOneBit(numChunks); step > 0; step >>= 1) {
+            if ((c + step <= numChunks) && (tree[c + step] <= n)) {
+                c += step;
+                n -= tree[c];
+            }
+        }
+
+        final int[] m  = mask[c];
+        final int x0   = (c % chunksWide) << CHUNK_SHIFT;
+        final int y0   = (c / chunksWide) << CHUNK_SHIFT;
+        final int cols = Math.min(CHUNK_SIZE, width - x0);
+        final int rows = Math.min(CHUNK_SIZE, height - y0);
+        final int inBounds = (cols == CHUNK_SIZE) ? -1 : ((1 << cols) - 1);
+
+        for (int r = 0; r < rows; ++r) {
+            int bits = inBounds;
+            if (m != null) {
+                bits &= ~(m[r] | m[CHUNK_SIZE + r]);
+            }
+
+            final int k = Integer.bitCount(bits);
+            if (n < k) {
+                // Clear the n lowest free bits
+                for (; n > 0; --n) {
+                    bits &= bits - 1;
+                }
+                result.setLocation(x0 + Integer.numberOfTrailingZeros(bits), y0 + r);
+                return result;
+            }
+            n -= k;
+        }
+
+        throw new IllegalStateException("FreeCellIndex is inconsistent");
+    }
+}
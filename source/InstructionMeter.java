@@ -0,0 +1,684 @@
+/*
+InstructionMeter.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+import java.io.*;
+
+/**
+ Counts the bytecode instructions that creatures execute, so that
+ their computation can be charged independently of the speed and load
+ of the machine.
+
+ <p>A metered {@link Sandbox} passes each class that it loads through
+ {@link #instrument}, which inserts a call to {@link #charge} at the
+ start of every basic block with the number of instructions in the
+ block.  The count accumulates in the {@link Meter} attached to the
+ running thread, which belongs to the creature that it is running.
+ Library code (java.*) is not instrumented, so each call into it
+ counts as the one invoke instruction.
+
+ <p>Because every basic block passes through charge, it is also where
+ a creature is stopped: once its Meter reaches its limit, each charge
+ throws ConvertedError.  That ends a creature that computes past
+ KILL_TIME, or that has been killed, on threads that cannot be
+ forcibly stopped.
+
+ @see Simulator#setMetering
+ */
+public final class InstructionMeter {
+
+    /** The instructions executed by one creature.  The count
+        follows the creature wherever it runs: on a pooled thread, a
+        virtual thread, or as a continuation on the simulation
+        thread. */
+    static final class Meter {
+        /** Instructions executed by the creature.  Written only by
+            the thread running it; read by the simulator while the
+            creature is waiting or to estimate the time of the current
+            turn. */
+        long instructions;
+
+        /** charge throws ConvertedError once instructions reaches
+            this.  The simulator sets it at the start of each turn and
+            to zero when the creature must stop. */
+        volatile long limit = Long.MAX_VALUE;
+
+        /** Makes every later charge throw. */
+        void exhaust() {
+            limit = 0;
+        }
+
+        boolean isExhausted() {
+            return instructions >= limit;
+        }
+    }
+
+    /** A thread that can have a Meter attached without a
+        ThreadLocal lookup on every charge, as the creature and
+        simulation threads are. */
+    static class MeteredThread extends Thread {
+        /** Meter of the creature running on this thread, or null */
+        Meter meter;
+
+        MeteredThread(ThreadGroup group, String name) {
+            super(group, name);
+        }
+
+        MeteredThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+    /** Bytes inserted at the start of each basic block:
+        sipush n; invokestatic charge; nop; nop.  A multiple of four,
+        so that the padding of tableswitch and lookupswitch does not
+        change. */
+    static private final int CHARGE_LENGTH = 8;
+
+    /** Meters of threads that are not MeteredThreads, such as
+        virtual threads */
+    static private final ThreadLocal<Meter> threadMeter = new ThreadLocal<Meter>();
+
+    private InstructionMeter() {}
+
+    /** Called by instrumented code at the start of each basic block
+        with the number of instructions in it.  Throws ConvertedError
+        if the current Meter has reached its limit. */
+    public static void charge(int n) {
+        final Thread t = Thread.currentThread();
+        final Meter m = (t instanceof MeteredThread) ? ((MeteredThread)t).meter : threadMeter.get();
+        if (m != null) {
+            m.instructions += n;
+            if (m.instructions >= m.limit) {
+                throw new ConvertedError("Creature was stopped for exceeding its time limit.");
+            }
+        }
+    }
+
+    /** Counts the instructions executed on the calling thread in m
+        from now on.  m may be null. */
+    static void attach(Meter m) {
+        final Thread t = Thread.currentThread();
+        if (t instanceof MeteredThread) {
+            ((MeteredThread)t).meter = m;
+        } else {
+            threadMeter.set(m);
+        }
+    }
+
+    /** Returns the Meter attached to the calling thread, or null. */
+    static Meter current() {
+        final Thread t = Thread.currentThread();
+        return (t instanceof MeteredThread) ? ((MeteredThread)t).meter : threadMeter.get();
+    }
+
+    /** Returns a copy of the class file classFile with every method
+        instrumented.  Throws ClassFormatError if classFile is
+        malformed or a method would grow past the limits of the class
+        file format. */
+    static byte[] instrument(byte[] classFile) {
+        try {
+            return new Instrumenter(classFile).run();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ClassFormatError("Truncated class file");
+        } catch (IOException e) {
+            throw new ClassFormatError(e.getMessage());
+        }
+    }
+
+
+    /** Rewrites one class file. */
+    private static class Instrumenter {
+        final private byte[]                in;
+        private int                         pos;
+
+        final private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final private DataOutputStream      out    = new DataOutputStream(buffer);
+
+        /** The Utf8 constants, by constant pool index; null for other entries */
+        private String[]                    utf8;
+
+        /** Constant pool index of the Methodref for charge */
+        private int                         chargeMethod;
+
+        Instrumenter(byte[] in) {
+            this.in = in;
+        }
+
+        private int u1() {
+            return in[pos++] & 0xFF;
+        }
+
+        private int u2() {
+            final int v = ((in[pos] & 0xFF) << 8) | (in[pos + 1] & 0xFF);
+            pos += 2;
+            return v;
+        }
+
+        private int u4() {
+            final int v = ((in[pos] & 0xFF) << 24) | ((in[pos + 1] & 0xFF) << 16) |
+                ((in[pos + 2] & 0xFF) << 8) | (in[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        private static int s2(byte[] b, int i) {
+            return (short)(((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF));
+        }
+
+        private static int s4(byte[] b, int i) {
+            return ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) |
+                ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+        }
+
+        private void copy(int n) throws IOException {
+            out.write(in, pos, n);
+            pos += n;
+        }
+
+        byte[] run() throws IOException {
+            if (u4() != 0xCAFEBABE) {
+                throw new ClassFormatError("Not a class file");
+            }
+            pos = 0;
+            copy(8);
+
+            copyConstantPool();
+
+            // access_flags, this_class, super_class
+            copy(6);
+            final int numInterfaces = u2();
+            out.writeShort(numInterfaces);
+            copy(2 * numInterfaces);
+
+            // Fields
+            final int numFields = u2();
+            out.writeShort(numFields);
+            for (int f = 0; f < numFields; ++f) {
+                copy(6);
+                copyAttributes();
+            }
+
+            // Methods
+            final int numMethods = u2();
+            out.writeShort(numMethods);
+            for (int m = 0; m < numMethods; ++m) {
+                copy(6);
+                final int numAttributes = u2();
+                out.writeShort(numAttributes);
+                for (int a = 0; a < numAttributes; ++a) {
+                    final int name   = u2();
+                    final int length = u4();
+                    out.writeShort(name);
+                    if ("Code".equals(utf8[name])) {
+                        final byte[] code = instrumentCode(pos, length);
+                        out.writeInt(code.length);
+                        out.write(code);
+                        pos += length;
+                    } else {
+                        out.writeInt(length);
+                        copy(length);
+                    }
+                }
+            }
+
+            // Class attributes
+            copy(in.length - pos);
+
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        private void copyAttributes() throws IOException {
+            final int numAttributes = u2();
+            out.writeShort(numAttributes);
+            for (int a = 0; a < numAttributes; ++a) {
+                copy(2);
+                final int length = u4();
+                out.writeInt(length);
+                copy(length);
+            }
+        }
+
+        /** Copies the constant pool, appending a Methodref for charge. */
+        private void copyConstantPool() throws IOException {
+            final int count = u2();
+            final int start = pos;
+            utf8 = new String[count];
+            for (int i = 1; i < count; ++i) {
+                final int tag = u1();
+                switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = new DataInputStream(new ByteArrayInputStream(in, pos, in.length - pos)).readUTF();
+                    pos += 2 + ((in[pos] & 0xFF) << 8 | (in[pos + 1] & 0xFF));
+                    break;
+
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    pos += 2;
+                    break;
+
+                case 15: // MethodHandle
+                    pos += 3;
+                    break;
+
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    pos += 4;
+                    break;
+
+                case 5: case 6: // Long and Double take two entries
+                    pos += 8;
+                    ++i;
+                    break;
+
+                default:
+                    throw new ClassFormatError("Unknown constant pool tag " + tag);
+                }
+            }
+
+            final int NUM_ADDED = 6;
+            if (count + NUM_ADDED > 0xFFFF) {
+                throw new ClassFormatError("Constant pool too large to meter");
+            }
+            out.writeShort(count + NUM_ADDED);
+            out.write(in, start, pos - start);
+
+            final int className = count;
+            out.writeByte(1);
+            out.writeUTF(InstructionMeter.class.getName().replace('.', '/'));
+
+            out.writeByte(7);
+            out.writeShort(className);
+
+            out.writeByte(1);
+            out.writeUTF("charge");
+
+            out.writeByte(1);
+            out.writeUTF("(I)V");
+
+            out.writeByte(12);
+            out.writeShort(count + 2);
+            out.writeShort(count + 3);
+
+            out.writeByte(10);
+            out.writeShort(count + 1);
+            out.writeShort(count + 4);
+            chargeMethod = count + 5;
+        }
+
+        /** Length of the instruction at offset i of code */
+        private static int instructionLength(byte[] code, int i) {
+            final int op = code[i] & 0xFF;
+            switch (op) {
+            case 0x10: case 0x12: case 0x15: case 0x16: case 0x17: case 0x18: case 0x19:
+            case 0x36: case 0x37: case 0x38: case 0x39: case 0x3a: case 0xa9: case 0xbc:
+                return 2;
+
+            case 0xb9: case 0xba: case 0xc8: case 0xc9:
+                return 5;
+
+            case 0xc5:
+                return 4;
+
+            case 0xc4: // wide
+                return ((code[i + 1] & 0xFF) == 0x84) ? 6 : 4;
+
+            case 0xaa: { // tableswitch
+                final int p = (i + 4) & ~3;
+                final int low  = s4(code, p + 4);
+                final int high = s4(code, p + 8);
+                return p - i + 12 + 4 * (high - low + 1);
+            }
+
+            case 0xab: { // lookupswitch
+                final int p = (i + 4) & ~3;
+                return p - i + 8 + 8 * s4(code, p + 4);
+            }
+
+            default:
+                if ((op == 0x11) || (op == 0x13) || (op == 0x14) || (op == 0x84) ||
+                    ((op >= 0x99) && (op <= 0xa8)) ||
+                    ((op >= 0xb2) && (op <= 0xb8)) ||
+                    (op == 0xbb) || (op == 0xbd) || (op == 0xc0) || (op == 0xc1) ||
+                    (op == 0xc6) || (op == 0xc7)) {
+                    return 3;
+                } else if (op > 0xc9) {
+                    throw new ClassFormatError("Unknown opcode " + op);
+                }
+                return 1;
+            }
+        }
+
+        /** True for the instructions with a 16-bit branch offset */
+        private static boolean isBranch(int op) {
+            return ((op >= 0x99) && (op <= 0xa8)) || (op == 0xc6) || (op == 0xc7);
+        }
+
+        /** True for the instructions after which control does not
+            fall through to the next one */
+        private static boolean endsFlow(int op) {
+            return ((op >= 0xac) && (op <= 0xb1)) || (op == 0xbf) || (op == 0xa7) ||
+                (op == 0xa9) || (op == 0xc8);
+        }
+
+        /** Offsets of code after instrumentation.  leaders marks the
+            basic blocks, each of which gains CHARGE_LENGTH bytes. */
+        private int[] before;
+
+        /** New offset of the charge at old offset i if i starts a
+            basic block, otherwise of the instruction at i.  Branches
+            and stack map frames are retargeted here. */
+        private int target(int i) {
+            return i + CHARGE_LENGTH * before[i];
+        }
+
+        /** New offset of the instruction at old offset i */
+        private int moved(int i, boolean[] leader) {
+            return target(i) + (leader[i] ? CHARGE_LENGTH : 0);
+        }
+
+        /** Returns the instrumented body of the Code attribute that
+            starts at offset start of the class file. */
+        private byte[] instrumentCode(int start, int length) throws IOException {
+            final int savedPos = pos;
+            pos = start;
+
+            final int maxStack  = u2();
+            final int maxLocals = u2();
+            final int codeLength = u4();
+            final byte[] code = new byte[codeLength];
+            System.arraycopy(in, pos, code, 0, codeLength);
+            pos += codeLength;
+
+            final int numHandlers = u2();
+            final int[] handlers = new int[4 * numHandlers];
+            for (int h = 0; h < handlers.length; ++h) {
+                handlers[h] = u2();
+            }
+
+            // Find the basic blocks
+            final boolean[] isStart = new boolean[codeLength + 1];
+            final boolean[] leader  = new boolean[codeLength + 1];
+            final boolean[] uncharged = new boolean[codeLength + 1];
+            leader[0] = true;
+            for (int h = 0; h < numHandlers; ++h) {
+                leader[handlers[4 * h + 2]] = true;
+                // javac guards the monitorexit that ends a synchronized
+                // block with a handler that covers itself. A charge that
+                // throws there would be caught by the same handler
+                // forever, so that block is not charged and releases
+                // the monitor before rethrowing.
+                if (handlers[4 * h] == handlers[4 * h + 2]) {
+                    uncharged[handlers[4 * h]] = true;
+                }
+            }
+
+            for (int i = 0; i < codeLength; i += instructionLength(code, i)) {
+                isStart[i] = true;
+                final int op   = code[i] & 0xFF;
+                final int next = i + instructionLength(code, i);
+                if (isBranch(op)) {
+                    leader[i + s2(code, i + 1)] = true;
+                    leader[next] = true;
+                } else if ((op == 0xc8) || (op == 0xc9)) {
+                    leader[i + s4(code, i + 1)] = true;
+                    leader[next] = true;
+                } else if ((op == 0xaa) || (op == 0xab)) {
+                    final int p = (i + 4) & ~3;
+                    leader[i + s4(code, p)] = true;
+                    if (op == 0xaa) {
+                        final int n = s4(code, p + 8) - s4(code, p + 4) + 1;
+                        for (int k = 0; k < n; ++k) {
+                            leader[i + s4(code, p + 12 + 4 * k)] = true;
+                        }
+                    } else {
+                        final int n = s4(code, p + 4);
+                        for (int k = 0; k < n; ++k) {
+                            leader[i + s4(code, p + 12 + 8 * k)] = true;
+                        }
+                    }
+                    leader[next] = true;
+                } else if (endsFlow(op)) {
+                    leader[next] = true;
+                }
+            }
+            leader[codeLength] = false;
+
+            before = new int[codeLength + 1];
+            for (int i = 0; i < codeLength; ++i) {
+                before[i + 1] = before[i] + (leader[i] ? 1 : 0);
+            }
+
+            final int newLength = target(codeLength);
+            if (newLength > 0xFFFF) {
+                throw new ClassFormatError("Method too large to meter");
+            }
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream(newLength + 64);
+            final DataOutputStream o = new DataOutputStream(body);
+            o.writeShort(Math.min(maxStack + 1, 0xFFFF));
+            o.writeShort(maxLocals);
+            o.writeInt(newLength);
+
+            // Count backwards so that each leader knows the size of its block
+            final int[] blockSize = new int[codeLength];
+            int count = 0;
+            for (int i = codeLength - 1; i >= 0; --i) {
+                if (isStart[i]) {
+                    ++count;
+                    if (leader[i]) {
+                        blockSize[i] = Math.min(count, Short.MAX_VALUE);
+                        count = 0;
+                    }
+                }
+            }
+
+            // The instructions, each block preceded by its charge
+            for (int i = 0; i < codeLength; i += instructionLength(code, i)) {
+                if (uncharged[i]) {
+                    for (int k = 0; k < CHARGE_LENGTH; ++k) {
+                        o.writeByte(0);
+                    }
+                } else if (leader[i]) {
+                    o.writeByte(0x11);
+                    o.writeShort(blockSize[i]);
+                    o.writeByte(0xb8);
+                    o.writeShort(chargeMethod);
+                    o.writeByte(0);
+                    o.writeByte(0);
+                }
+
+                final int op  = code[i] & 0xFF;
+                final int len = instructionLength(code, i);
+                final int at  = moved(i, leader);
+                if (isBranch(op)) {
+                    final int offset = target(i + s2(code, i + 1)) - at;
+                    if ((offset < Short.MIN_VALUE) || (offset > Short.MAX_VALUE)) {
+                        throw new ClassFormatError("Branch too long to meter");
+                    }
+                    o.writeByte(op);
+                    o.writeShort(offset);
+                } else if ((op == 0xc8) || (op == 0xc9)) {
+                    o.writeByte(op);
+                    o.writeInt(target(i + s4(code, i + 1)) - at);
+                } else if ((op == 0xaa) || (op == 0xab)) {
+                    final int p = (i + 4) & ~3;
+                    o.write(code, i, p - i);
+                    o.writeInt(target(i + s4(code, p)) - at);
+                    if (op == 0xaa) {
+                        o.write(code, p + 4, 8);
+                        final int n = s4(code, p + 8) - s4(code, p + 4) + 1;
+                        for (int k = 0; k < n; ++k) {
+                            o.writeInt(target(i + s4(code, p + 12 + 4 * k)) - at);
+                        }
+                    } else {
+                        final int n = s4(code, p + 4);
+                        o.writeInt(n);
+                        for (int k = 0; k < n; ++k) {
+                            o.writeInt(s4(code, p + 8 + 8 * k));
+                            o.writeInt(target(i + s4(code, p + 12 + 8 * k)) - at);
+                        }
+                    }
+                } else {
+                    o.write(code, i, len);
+                }
+            }
+
+            // Exception handlers
+            o.writeShort(numHandlers);
+            for (int h = 0; h < numHandlers; ++h) {
+                o.writeShort(target(handlers[4 * h]));
+                o.writeShort(target(handlers[4 * h + 1]));
+                o.writeShort(target(handlers[4 * h + 2]));
+                o.writeShort(handlers[4 * h + 3]);
+            }
+
+            // Attributes that refer to offsets are remapped; the rest
+            // of the attributes of Code only annotate it and are dropped
+            final int numAttributes = u2();
+            final ByteArrayOutputStream attributes = new ByteArrayOutputStream();
+            final DataOutputStream a = new DataOutputStream(attributes);
+            int numKept = 0;
+            for (int k = 0; k < numAttributes; ++k) {
+                final int name   = u2();
+                final int end    = u4() + pos;
+                final String s   = utf8[name];
+                final ByteArrayOutputStream value = new ByteArrayOutputStream();
+                final DataOutputStream v = new DataOutputStream(value);
+                if ("LineNumberTable".equals(s)) {
+                    final int n = u2();
+                    v.writeShort(n);
+                    for (int e = 0; e < n; ++e) {
+                        v.writeShort(target(u2()));
+                        v.writeShort(u2());
+                    }
+                } else if ("LocalVariableTable".equals(s) || "LocalVariableTypeTable".equals(s)) {
+                    final int n = u2();
+                    v.writeShort(n);
+                    for (int e = 0; e < n; ++e) {
+                        final int from = u2();
+                        final int to   = from + u2();
+                        v.writeShort(target(from));
+                        v.writeShort(target(to) - target(from));
+                        v.writeShort(u2());
+                        v.writeShort(u2());
+                        v.writeShort(u2());
+                    }
+                } else if ("StackMapTable".equals(s)) {
+                    remapStackMapTable(v, leader);
+                } else {
+                    pos = end;
+                    continue;
+                }
+
+                assert pos == end;
+                v.flush();
+                a.writeShort(name);
+                a.writeInt(value.size());
+                value.writeTo(a);
+                ++numKept;
+            }
+            a.flush();
+            o.writeShort(numKept);
+            attributes.writeTo(o);
+
+            o.flush();
+            pos = savedPos;
+            return body.toByteArray();
+        }
+
+        private void remapStackMapTable(DataOutputStream v, boolean[] leader) throws IOException {
+            final int n = u2();
+            v.writeShort(n);
+            int offset = -1;
+            int newOffset = -1;
+            for (int e = 0; e < n; ++e) {
+                final int type = u1();
+                final int delta;
+                if (type < 128) {
+                    delta = type & 63;
+                } else if (type >= 247) {
+                    delta = u2();
+                } else {
+                    throw new ClassFormatError("Unknown stack map frame type " + type);
+                }
+
+                offset += delta + 1;
+                final int newDelta = target(offset) - newOffset - 1;
+                newOffset = target(offset);
+
+                if (type < 64) {
+                    // same_frame
+                    if (newDelta < 64) {
+                        v.writeByte(newDelta);
+                    } else {
+                        v.writeByte(251);
+                        v.writeShort(newDelta);
+                    }
+                } else if ((type < 128) || (type == 247)) {
+                    // same_locals_1_stack_item
+                    if (newDelta < 64) {
+                        v.writeByte(64 + newDelta);
+                    } else {
+                        v.writeByte(247);
+                        v.writeShort(newDelta);
+                    }
+                    remapVerificationType(v, leader);
+                } else {
+                    v.writeByte(type);
+                    v.writeShort(newDelta);
+                    if ((type >= 252) && (type <= 254)) {
+                        // append_frame
+                        for (int k = 0; k < type - 251; ++k) {
+                            remapVerificationType(v, leader);
+                        }
+                    } else if (type == 255) {
+                        // full_frame
+                        for (int list = 0; list < 2; ++list) {
+                            final int count = u2();
+                            v.writeShort(count);
+                            for (int k = 0; k < count; ++k) {
+                                remapVerificationType(v, leader);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void remapVerificationType(DataOutputStream v, boolean[] leader) throws IOException {
+            final int tag = u1();
+            v.writeByte(tag);
+            if (tag == 7) {
+                // Object
+                v.writeShort(u2());
+            } else if (tag == 8) {
+                // Uninitialized: the offset of its new instruction
+                v.writeShort(moved(u2(), leader));
+            }
+        }
+    }
+}
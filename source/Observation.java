@@ -81,6 +81,11 @@ public final class Observation {
      * the classID for the creature owning the shrine */
     public int       shrineClassId = Creature.UNINITIALIZED_CLASS_ID;
 
+    /** The pheromone at this location in an observation returned by
+        {@link Creature#observeSelf}; null in those returned by
+        {@link Creature#look} and {@link Creature#observe}. */
+    public String    pheromone;
+
     public String toString() {
         return super.toString() + "{ type = " + type + 
             "; className = " + className + 
@@ -95,6 +100,13 @@ public final class Observation {
     }
 
 
+    /** Blank observation, for passing to {@link
+        Creature#observeAhead} or placing in the buffer passed to
+        {@link Creature#observe(Observation[])}. */
+    public Observation() {
+    }
+
+
     /** Empty observation */
     public Observation(int x, int y, long t) {
         position = new Point(x, y);
@@ -179,6 +191,29 @@ public final class Observation {
     }
 
 
+    /** Overwrites every field, reusing the position Point if there
+        is one.  Used by the simulator to fill a creature's
+        observation buffer without allocating. */
+    void set(int x, int y, Type t, String c, int cid, int i, Direction dir, long tm, boolean f, boolean m, int s) {
+        if (position == null) {
+            position = new Point(x, y);
+        } else {
+            position.x = x;
+            position.y = y;
+        }
+        type          = t;
+        className     = c;
+        classId       = cid;
+        id            = i;
+        direction     = dir;
+        time          = tm;
+        inFog         = f;
+        inMud         = m;
+        shrineClassId = s;
+        pheromone     = null;
+    }
+
+
     /** The classNames are not required to match, but all other fields must. */
     public boolean equals(Object obj) {
         if (obj instanceof Observation) {
@@ -0,0 +1,155 @@
+/*
+OccupancyIndex.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ Records which squares of the map are occupied (by a wall, thorn, or
+ creature) and answers "how far is the first occupied square from
+ (x, y) in this direction?" without visiting every square on the way.
+
+ <p>The map is divided into CHUNK_SIZE x CHUNK_SIZE chunks.  Each
+ chunk keeps one bit mask per row and one per column, so a query
+ examines a single int per chunk crossed: a 1000-square line of sight
+ costs at most 32 steps instead of 1000, and chunks with nothing in
+ them are never allocated.  The simulator keeps the index current
+ from every change to its map, so walls loaded with the map and
+ creatures that move, spawn, and die are all reflected immediately.
+
+ @see Simulator#observe(Creature)
+ */
+public class OccupancyIndex {
+    static private final int CHUNK_SHIFT = 5;
+    static private final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+    static private final int CHUNK_MASK  = CHUNK_SIZE - 1;
+
+    private final int   width;
+    private final int   height;
+    private final int   chunksWide;
+
+    /** For each chunk, null if nothing has ever been placed in it,
+        otherwise CHUNK_SIZE row masks followed by CHUNK_SIZE column
+        masks.  Bit i of row mask r is the square in column i of row
+        r of the chunk; bit i of column mask c is the square in row i
+        of column c. */
+    private final int[][] mask;
+
+    public OccupancyIndex(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        chunksWide  = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+        mask = new int[chunksWide * ((height + CHUNK_MASK) >> CHUNK_SHIFT)][];
+    }
+
+    private int chunk(int x, int y) {
+        return (x >> CHUNK_SHIFT) + (y >> CHUNK_SHIFT) * chunksWide;
+    }
+
+    /** (x, y) must be in bounds */
+    public boolean isOccupied(int x, int y) {
+        final int[] m = mask[chunk(x, y)];
+        return (m != null) && (((m[y & CHUNK_MASK] >>> (x & CHUNK_MASK)) & 1) != 0);
+    }
+
+    /** (x, y) must be in bounds */
+    public void set(int x, int y, boolean occupied) {
+        final int c = chunk(x, y);
+        int[] m = mask[c];
+        if (m == null) {
+            if (! occupied) {
+                return;
+            }
+            m = mask[c] = new int[2 * CHUNK_SIZE];
+        }
+
+        final int row = y & CHUNK_MASK;
+        final int col = x & CHUNK_MASK;
+        if (occupied) {
+            m[row]              |= 1 << col;
+            m[CHUNK_SIZE + col] |= 1 << row;
+        } else {
+            m[row]              &= ~(1 << col);
+            m[CHUNK_SIZE + col] &= ~(1 << row);
+        }
+    }
+
+    /** Number of steps from (x, y) along (dx, dy), which must be
+        one of the four unit directions, to the first square that is
+        occupied or out of bounds.  (x, y) itself is not examined.
+        Always at least 1. */
+    public int distanceToOccupied(int x, int y, int dx, int dy) {
+        if (dx > 0) {
+            for (int i = x + 1; i < width; i = (i | CHUNK_MASK) + 1) {
+                final int[] m = mask[chunk(i, y)];
+                if (m != null) {
+                    final int bits = m[y & CHUNK_MASK] >>> (i & CHUNK_MASK);
+                    if (bits != 0) {
+                        return i + Integer.numberOfTrailingZeros(bits) - x;
+                    }
+                }
+            }
+            return width - x;
+
+        } else if (dx < 0) {
+            for (int i = x - 1; i >= 0; i = (i & ~CHUNK_MASK) - 1) {
+                final int[] m = mask[chunk(i, y)];
+                if (m != null) {
+                    final int bits = m[y & CHUNK_MASK] << (CHUNK_MASK - (i & CHUNK_MASK));
+                    if (bits != 0) {
+                        return x - i + Integer.numberOfLeadingZeros(bits);
+                    }
+                }
+            }
+            return x + 1;
+
+        } else if (dy > 0) {
+            for (int j = y + 1; j < height; j = (j | CHUNK_MASK) + 1) {
+                final int[] m = mask[chunk(x, j)];
+                if (m != null) {
+                    final int bits = m[CHUNK_SIZE + (x & CHUNK_MASK)] >>> (j & CHUNK_MASK);
+                    if (bits != 0) {
+                        return j + Integer.numberOfTrailingZeros(bits) - y;
+                    }
+                }
+            }
+            return height - y;
+
+        } else {
+            assert dy < 0;
+            for (int j = y - 1; j >= 0; j = (j & ~CHUNK_MASK) - 1) {
+                final int[] m = mask[chunk(x, j)];
+                if (m != null) {
+                    final int bits = m[CHUNK_SIZE + (x & CHUNK_MASK)] << (CHUNK_MASK - (j & CHUNK_MASK));
+                    if (bits != 0) {
+                        return y - j + Integer.numberOfLeadingZeros(bits);
+                    }
+                }
+            }
+            return y + 1;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+Plan.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+import java.util.ArrayList;
+
+/**
+ A short sequence of actions that a Creature submits with {@link
+ Creature#execute}.
+
+ <p>The creature's thread takes the first action and then sleeps until
+ the plan ends; the simulator takes the remaining actions itself on
+ the creature's following turns.  Each action costs and schedules
+ exactly as if the creature had called it directly, but the creature's
+ thread is only woken once per plan instead of once per action.
+
+ <p>Example:
+ <pre>
+    // Move 5, turn left, and attack, unless a move is blocked
+    execute(new Plan().moveForward(5).turnLeft().attack().stopIfBlocked());
+ </pre>
+
+ <p>A Plan may be reused and shared; executing it takes a snapshot of
+ its actions.
+
+ @see Creature#execute
+ */
+public class Plan {
+
+    /** Each action is repeated the corresponding number of times in
+        counts, so that a long run of one action takes no space. */
+    private final ArrayList<StepCreature.Action> actions = new ArrayList<StepCreature.Action>();
+    private final ArrayList<Integer>             counts  = new ArrayList<Integer>();
+
+    private boolean stopIfBlocked = false;
+
+    private boolean stopIfFailed  = false;
+
+    /** Appends n moveForward actions. */
+    public Plan moveForward(int n) {
+        return add(StepCreature.Action.MOVE_FORWARD, n);
+    }
+
+    public Plan moveForward() {
+        return moveForward(1);
+    }
+
+    /** Appends n moveBackward actions. */
+    public Plan moveBackward(int n) {
+        return add(StepCreature.Action.MOVE_BACKWARD, n);
+    }
+
+    public Plan moveBackward() {
+        return moveBackward(1);
+    }
+
+    public Plan turnLeft() {
+        return add(StepCreature.Action.TURN_LEFT, 1);
+    }
+
+    public Plan turnRight() {
+        return add(StepCreature.Action.TURN_RIGHT, 1);
+    }
+
+    public Plan attack() {
+        return add(StepCreature.Action.ATTACK, 1);
+    }
+
+    /** Appends n delay actions. */
+    public Plan delay(int n) {
+        return add(StepCreature.Action.DELAY, n);
+    }
+
+    public Plan delay() {
+        return delay(1);
+    }
+
+    /** End the plan immediately after a move that fails. */
+    public Plan stopIfBlocked() {
+        stopIfBlocked = true;
+        return this;
+    }
+
+    /** End the plan immediately after a move or attack that fails. */
+    public Plan stopIfFailed() {
+        stopIfFailed = true;
+        return this;
+    }
+
+    /** Number of actions in the plan. */
+    public long size() {
+        long n = 0;
+        for (int count : counts) {
+            n += count;
+        }
+        return n;
+    }
+
+    private Plan add(StepCreature.Action a, int n) {
+        if (n > 0) {
+            actions.add(a);
+            counts.add(n);
+        }
+        return this;
+    }
+
+    /** Called by the simulator. */
+    Plan copy() {
+        final Plan p = new Plan();
+        p.actions.addAll(actions);
+        p.counts.addAll(counts);
+        p.stopIfBlocked = stopIfBlocked;
+        p.stopIfFailed  = stopIfFailed;
+        return p;
+    }
+
+    /** Called by the simulator.  Number of runs of repeated actions. */
+    int numRuns() {
+        return actions.size();
+    }
+
+    /** Called by the simulator.  The action of run i. */
+    StepCreature.Action get(int i) {
+        return actions.get(i);
+    }
+
+    /** Called by the simulator.  How many times run i repeats its action. */
+    int count(int i) {
+        return counts.get(i);
+    }
+
+    /** Called by the simulator.  True if the plan should end after
+        action a returned succeeded. */
+    boolean stopsAfter(StepCreature.Action a, boolean succeeded) {
+        if (succeeded) {
+            return false;
+        }
+
+        switch (a) {
+        case MOVE_FORWARD:
+        case MOVE_BACKWARD:
+            return stopIfBlocked || stopIfFailed;
+
+        case ATTACK:
+            return stopIfFailed;
+
+        default:
+            return false;
+        }
+    }
+}
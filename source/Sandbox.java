@@ -68,6 +68,10 @@ public class Sandbox extends URLClassLoader {
     
     private boolean isSecure = true;
 
+    /** If true, classes that are not shared are instrumented by
+        InstructionMeter as they are loaded. */
+    private boolean isMetered = false;
+
     /** <b>Replaces</b> the system classpath with this one. */
     private Sandbox(URL[] classpath, Class[] share, boolean isSecure) {
         super(classpath, null);
@@ -176,6 +180,9 @@ public class Sandbox extends URLClassLoader {
             if (c != null) {
                 // Use the existing shared class
                 return c;
+            } else if (isMetered && ! name.startsWith("java.")) {
+                // Load it myself, so that it is instrumented
+                return super.loadClass(name, b);
             } else {
                 // Load normally
                 return Class.forName(name, b, ClassLoader.getSystemClassLoader());
@@ -216,6 +223,50 @@ public class Sandbox extends URLClassLoader {
         }
     }
 
+    /** Instruments the classes that this loads itself when metered. */
+    protected Class findClass(String name) throws ClassNotFoundException {
+        if (! isMetered) {
+            return super.findClass(name);
+        }
+
+        final String path = name.replace('.', '/') + ".class";
+        URL url = findResource(path);
+        if (url == null) {
+            // On Java 9 and later the system classpath is not known
+            // (see getSystemClasspath), so read the file through the
+            // system ClassLoader
+            url = ClassLoader.getSystemResource(path);
+        }
+        if (url == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        try {
+            final InputStream input = url.openStream();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                final byte[] buffer = new byte[4096];
+                for (int n = input.read(buffer); n != -1; n = input.read(buffer)) {
+                    bytes.write(buffer, 0, n);
+                }
+            } finally {
+                input.close();
+            }
+
+            final byte[] b = InstructionMeter.instrument(bytes.toByteArray());
+            return defineClass(name, b, 0, b.length, 
+                               new CodeSource(url, (java.security.cert.Certificate[])null));
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    /** True if c was loaded by a metered Sandbox. */
+    static boolean isMetered(Class c) {
+        final ClassLoader loader = c.getClassLoader();
+        return (loader instanceof Sandbox) && ((Sandbox)loader).isMetered;
+    }
+
     /** Loads the class named name in its own sandbox.  The same as:
         <code>Class.forName(name, false, new Sandbox(shared));</code>
         This enables reloading of a class without terminating the
@@ -225,6 +276,18 @@ public class Sandbox extends URLClassLoader {
         restricted from accessing illegal areas.
     */
     static Class loadIsolated(String name, Class[] shared, boolean isSecure) throws ClassNotFoundException, IOException {
-        return new Sandbox(shared, isSecure).loadClass(name);
+        return loadIsolated(name, shared, isSecure, false);
+    }
+
+    /** As loadIsolated(name, shared, isSecure), but if isMetered
+        then the classes of the sandbox count the instructions that
+        they execute.
+
+        @see InstructionMeter
+    */
+    static Class loadIsolated(String name, Class[] shared, boolean isSecure, boolean isMetered) throws ClassNotFoundException, IOException {
+        final Sandbox sandbox = new Sandbox(shared, isSecure);
+        sandbox.isMetered = isMetered;
+        return sandbox.loadClass(name);
     }
 }
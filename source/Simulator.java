@@ -33,6 +33,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.util.concurrent.locks.LockSupport;
 
 /**
    Darwin 2.1 simulator.  Executes the simulation on a set of
@@ -75,16 +76,21 @@ public final class Simulator implements javax.swing.Icon {
     /** Shared between ClassLoader (Sandbox) instances */
     static public final Class[] sharedClasses = 
     {Creature.class, Direction.class, Observation.class, 
-     Type.class, Entity.class, ConvertedError.class};
+     Type.class, Entity.class, ConvertedError.class,
+     StepCreature.class, StepCreature.Action.class, Plan.class,
+     InstructionMeter.class};
 
     /** Loads a class in its own Sandbox. 
         
         secure: if true, security is enforced and the class is not
         allowed to access the file system, Simulator, etc.
+
+        The class is instrumented for metering if setMetering(true)
+        was called first.
      */
     static public Class loadClass(String name, boolean secure) 
         throws ClassNotFoundException, java.io.IOException {
-        return Sandbox.loadIsolated(name, sharedClasses, secure);
+        return Sandbox.loadIsolated(name, sharedClasses, secure, defaultMetering);
     }
 
 
@@ -114,6 +120,9 @@ public final class Simulator implements javax.swing.Icon {
                     synchronized (lock) {
                         job = null;
                         working = false;
+
+                        // Wake awaitIdle
+                        lock.notifyAll();
                     }
                 }
             }
@@ -125,6 +134,27 @@ public final class Simulator implements javax.swing.Icon {
             return working && isAlive() && (job != null);
         }
 
+        /** Blocks until this thread finishes its job, or for at most
+            timeout nanoseconds. */
+        final public void awaitIdle(long timeout) {
+            final long deadline = System.nanoTime() + timeout;
+            synchronized (lock) {
+                while (working && isAlive()) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return;
+                    }
+
+                    try {
+                        lock.wait(remaining / 1000000, (int)(remaining % 1000000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
         /** True if this thread is eligible for ThreadPool.recycle */
         final public boolean recycleable() {
             return isAlive() && ! working;
@@ -138,7 +168,8 @@ public final class Simulator implements javax.swing.Icon {
 
             assert ! working;
 
-            // Wake up the thread
+            // Wake up the thread.  Only this thread can be waiting on
+            // lock, since awaitIdle is not called on an idle thread
             synchronized (lock) {
                 working = true;
                 job = r;
@@ -187,6 +218,679 @@ public final class Simulator implements javax.swing.Icon {
         its own threadpool. */
     private final ThreadPool threadPool = new ThreadPool();
 
+
+    /** Stops threads in the background for stopThread and
+        stopThreadGroup.  A thread is given a moment to respond to its
+        interrupt before Thread.stop is called, and waiting out that
+        moment on the simulator thread cost a millisecond per death.
+        The reaper waits once for every batch instead.  One Reaper is
+        shared by all Simulators. */
+    private static class Reaper extends Thread {
+        static private Reaper instance;
+
+        /** Threads and ThreadGroups, already interrupted, and
+            Runnables that stop something */
+        private final java.util.concurrent.LinkedBlockingQueue<Object> queue =
+            new java.util.concurrent.LinkedBlockingQueue<Object>();
+
+        private Reaper() {
+            super("Thread reaper");
+            setDaemon(true);
+        }
+
+        /** t must be a Thread, ThreadGroup, or Runnable */
+        static synchronized public void reap(Object t) {
+            if (instance == null) {
+                instance = new Reaper();
+                instance.start();
+            }
+            instance.queue.add(t);
+        }
+
+        // Suppresses the thread stop deprecation warning.
+        @SuppressWarnings("deprecation")
+        public void run() {
+            final ArrayList<Object> batch = new ArrayList<Object>();
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+
+                    // Let the interrupts take effect
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (Object t : batch) {
+                    try {
+                        if (t instanceof Thread) {
+                            ((Thread)t).stop();
+                        } else if (t instanceof ThreadGroup) {
+                            ((ThreadGroup)t).stop();
+                        } else {
+                            ((Runnable)t).run();
+                        }
+                    } catch (UnsupportedOperationException e) {
+                        // Java 20 and later no longer support stop
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+
+    /** Under ExecutionMode.SINGLE_THREADED, creatures run on the
+        simulation thread, so no other thread is waiting to time them
+        out.  Metering stops a creature that computes for too long;
+        the Watchdog stops one that blocks, e.g., in Object.wait, by
+        exhausting its Meter and interrupting the thread running it
+        once the turn has lasted METERED_WALL_LIMIT. */
+    private class Watchdog extends Thread {
+        /** The creature whose turn is being timed, or null, and the
+            thread running it */
+        private Proxy   proxy;
+        private Thread  thread;
+        private long    deadline;
+
+        /** True if thread was interrupted for proxy */
+        private boolean fired;
+
+        public Watchdog() {
+            super("Watchdog");
+            setDaemon(true);
+        }
+
+        /** Called on the thread that is about to run p. */
+        public synchronized void begin(Proxy p) {
+            proxy = p;
+            thread = Thread.currentThread();
+            deadline = System.nanoTime() + METERED_WALL_LIMIT;
+            fired = false;
+        }
+
+        /** Called on the same thread after running the proxy given
+            to begin. */
+        public void end() {
+            synchronized (this) {
+                proxy = null;
+                if (! fired) {
+                    return;
+                }
+            }
+
+            // Clear the interrupt that woke the creature, in case it
+            // did not consume it
+            Thread.interrupted();
+        }
+
+        public void run() {
+            while (! isInterrupted()) {
+                synchronized (this) {
+                    if ((proxy != null) && (System.nanoTime() - deadline >= 0)) {
+                        proxy.meter.exhaust();
+                        fired = true;
+                        proxy = null;
+                        thread.interrupt();
+                    }
+                }
+                LockSupport.parkNanos(this, METERED_POLL_TIME);
+            }
+        }
+    }
+
+
+    /** A platform thread that runs one creature after another.
+        Giving a spawned creature an idle CreatureThread costs a
+        wake-up instead of creating and starting a thread.  When a
+        creature's run() ends, normally or because it was killed, the
+        thread returns to its CreatureThreadPool. */
+    private static class CreatureThread extends InstructionMeter.MeteredThread {
+        private final CreatureThreadPool pool;
+        private final Species            species;
+
+        /** Guards the fields below.  Not this, which creature code
+            can lock through Thread.currentThread(). */
+        private final Object             lock = new Object();
+
+        /** The current creature's body; null while idle. */
+        private Runnable                 job;
+
+        /** Number of jobs finished, which identifies the current job */
+        private int                      generation;
+
+        /** Set when the thread was stopped; it then exits instead of
+            returning to the pool. */
+        private boolean                  abandoned;
+
+        public CreatureThread(CreatureThreadPool pool, Species species, String name) {
+            super(pool.group, name);
+            this.pool = pool;
+            this.species = species;
+        }
+
+        public void run() {
+            while (true) {
+                final Runnable r;
+                synchronized (lock) {
+                    while (job == null) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            // The pool was closed
+                            return;
+                        }
+                    }
+                    r = job;
+                }
+
+                // An exception that escapes the creature ends this
+                // thread, exactly as if it had not been pooled
+                r.run();
+
+                synchronized (lock) {
+                    job = null;
+                    ++generation;
+                    if (abandoned) {
+                        return;
+                    }
+                }
+
+                // Clear the interrupt that killed the creature
+                Thread.interrupted();
+                if (! pool.release(this)) {
+                    return;
+                }
+            }
+        }
+
+        /** Runs body on this thread and returns the job's identifier
+            for cancel.  Called on the simulation thread. */
+        public int begin(Runnable body) {
+            final int g;
+            synchronized (lock) {
+                assert job == null;
+                job = body;
+                g = generation;
+                lock.notify();
+            }
+            if (getState() == Thread.State.NEW) {
+                start();
+            }
+            return g;
+        }
+
+        /** Interrupts job g, and has the Reaper stop it if it does not
+            end promptly.  Does nothing if job g has already ended, so
+            that a thread that has since been reused is never
+            disturbed. */
+        public void cancel(final int g) {
+            synchronized (lock) {
+                if ((job == null) || (generation != g)) {
+                    return;
+                }
+                interrupt();
+            }
+            Reaper.reap(new Runnable() {
+                    public void run() {
+                        stopJob(g);
+                    }});
+        }
+
+        // Suppresses the thread stop deprecation warning.
+        @SuppressWarnings("deprecation")
+        private void stopJob(int g) {
+            synchronized (lock) {
+                if ((job != null) && (generation == g)) {
+                    abandoned = true;
+                    stop();
+                }
+            }
+        }
+    }
+
+
+    /** Idle CreatureThreads of one match, kept per species so that
+        no thread-local state passes between species. */
+    private static class CreatureThreadPool {
+        public final ThreadGroup group;
+
+        private final IdentityHashMap<Species, ArrayList<CreatureThread>> idle =
+            new IdentityHashMap<Species, ArrayList<CreatureThread>>();
+
+        private boolean closed;
+
+        public CreatureThreadPool(ThreadGroup g) {
+            group = g;
+        }
+
+        /** An idle thread for species, or a new unstarted one.  Start it with begin. */
+        public CreatureThread allocate(Species species, String name) {
+            synchronized (this) {
+                final ArrayList<CreatureThread> list = idle.get(species);
+                if ((list != null) && ! list.isEmpty()) {
+                    final CreatureThread t = list.remove(list.size() - 1);
+                    t.setName(name);
+                    return t;
+                }
+            }
+            return new CreatureThread(this, species, name);
+        }
+
+        /** Called by t when its creature has ended.  Returns false
+            if t should exit instead. */
+        synchronized boolean release(CreatureThread t) {
+            if (closed) {
+                return false;
+            }
+            ArrayList<CreatureThread> list = idle.get(t.species);
+            if (list == null) {
+                list = new ArrayList<CreatureThread>();
+                idle.put(t.species, list);
+            }
+            list.add(t);
+            return true;
+        }
+
+        /** Ends the idle threads, and running ones as their creatures end. */
+        public synchronized void close() {
+            closed = true;
+            for (ArrayList<CreatureThread> list : idle.values()) {
+                for (CreatureThread t : list) {
+                    t.interrupt();
+                }
+            }
+            idle.clear();
+        }
+    }
+
+
+    /** Creates virtual threads through reflection so that the
+        simulator still compiles and runs on Java versions that
+        predate them.  Virtual threads are cheap to create and park,
+        and their stacks live on the heap, so a map can hold far more
+        creatures than it could with one operating system thread
+        each. */
+    private static class VirtualThreads {
+        static private java.lang.reflect.Method ofVirtual;
+        static private java.lang.reflect.Method name;
+        static private java.lang.reflect.Method unstarted;
+        static private java.lang.reflect.Method isVirtual;
+
+        static {
+            try {
+                final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                isVirtual = Thread.class.getMethod("isVirtual");
+                name      = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+            } catch (Exception e) {
+                // Not available on this JVM
+                ofVirtual = null;
+            }
+        }
+
+        /** True if this JVM can create virtual threads. */
+        static public boolean isSupported() {
+            return ofVirtual != null;
+        }
+
+        /** Creates but does not start a virtual thread. */
+        static public Thread newThread(Runnable r, String threadName) {
+            assert isSupported();
+            try {
+                Object b = ofVirtual.invoke(null);
+                b = name.invoke(b, threadName);
+                return (Thread)unstarted.invoke(b, r);
+            } catch (Exception e) {
+                throw new Error("Unable to create a virtual thread", e);
+            }
+        }
+
+        static public boolean isVirtual(Thread t) {
+            if (! isSupported()) {
+                return false;
+            }
+            try {
+                return (Boolean)isVirtual.invoke(t);
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+
+    /** Runs creatures as continuations on the thread that drives the
+        simulation, through reflection on the JDK's internal
+        continuation support (the mechanism underneath virtual
+        threads).  That requires Java 21 or later and the JVM option
+        <code>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</code>. */
+    private static class Continuations {
+        static private Object scope;
+        static private java.lang.reflect.Constructor<?> constructor;
+        static private java.lang.reflect.Method runMethod;
+        static private java.lang.reflect.Method yieldMethod;
+        static private java.lang.reflect.Method isDoneMethod;
+
+        static {
+            try {
+                final Class<?> scopeClass = Class.forName("jdk.internal.vm.ContinuationScope");
+                final Class<?> c = Class.forName("jdk.internal.vm.Continuation");
+                constructor  = c.getConstructor(scopeClass, Runnable.class);
+                runMethod    = c.getMethod("run");
+                yieldMethod  = c.getMethod("yield", scopeClass);
+                isDoneMethod = c.getMethod("isDone");
+
+                // Throws IllegalAccessException if the package is not exported
+                scope = scopeClass.getConstructor(String.class).newInstance("Darwin");
+            } catch (Throwable e) {
+                // Not available on this JVM
+                scope = null;
+            }
+        }
+
+        static public boolean isSupported() {
+            return scope != null;
+        }
+
+        /** Creates a continuation that will execute r when first run. */
+        static public Object create(Runnable r) {
+            assert isSupported();
+            try {
+                return constructor.newInstance(scope, r);
+            } catch (Exception e) {
+                throw new Error("Unable to create a continuation", e);
+            }
+        }
+
+        /** Runs or resumes continuation c on the calling thread until
+            it yields or completes.  Anything the continuation throws
+            is rethrown here. */
+        static public void run(Object c) throws Throwable {
+            try {
+                runMethod.invoke(c);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /** Suspends the currently running continuation, returning
+            true when it is next run.  Returns false at once if the
+            continuation is pinned, e.g., because it holds a
+            monitor. */
+        static public boolean yield() {
+            try {
+                yieldMethod.invoke(null, scope);
+                return true;
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                return false;
+            } catch (IllegalAccessException e) {
+                throw new Error(e);
+            }
+        }
+
+        static public boolean isDone(Object c) {
+            try {
+                return (Boolean)isDoneMethod.invoke(c);
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+
+    /** How creature code is executed.
+        @see #setExecutionMode */
+    public enum ExecutionMode {
+        /** Each creature runs on its own operating system thread.
+            This is the default. */
+        PLATFORM_THREADS,
+
+        /** Each creature runs on its own virtual thread.  Requires
+            Java 21 or later, and metering (see setMetering), which
+            selecting this mode turns on.  The JVM neither measures
+            the CPU time of a virtual thread nor can stop one, so the
+            instruction count takes the place of both: a creature is
+            charged for the instructions that it executes, and one
+            that exceeds KILL_TIME or dies is stopped at its next
+            basic block. */
+        VIRTUAL_THREADS,
+
+        /** Every creature runs as a continuation on the simulation
+            thread itself, so ending a turn is a jump back into the
+            simulator rather than a switch between threads.  Only one
+            core is used per match, and the order of execution does
+            not depend on the operating system's thread scheduler.
+            Requires Java 21 or later run with <code>--add-exports
+            java.base/jdk.internal.vm=ALL-UNNAMED</code>.
+
+            <p>Requires metering (see setMetering), which selecting
+            this mode turns on.  A continuation cannot be preempted,
+            so the instruction count enforces KILL_TIME: a creature
+            that computes past it is stopped at its next basic block.
+            A Watchdog interrupts one that blocks instead, e.g., in
+            Object.wait, for METERED_WALL_LIMIT.  A creature cannot
+            end its turn while holding a monitor; one that acts while
+            holding one is stopped.  Each of these converts the
+            creature into an Apple, as running out of time does with
+            threads. */
+        SINGLE_THREADED
+    }
+
+    /** Execution mode for Simulators created after the next call to
+        setExecutionMode. */
+    static private ExecutionMode defaultExecutionMode = ExecutionMode.PLATFORM_THREADS;
+
+    /** Selects how creatures will be executed by Simulators started
+        after this call.  Falls back to PLATFORM_THREADS (with a
+        warning) if the JVM does not support the requested mode.
+        VIRTUAL_THREADS and SINGLE_THREADED also turn on metering,
+        so this must be called before loadClass. */
+    static public void setExecutionMode(ExecutionMode m) {
+        if ((m == ExecutionMode.VIRTUAL_THREADS) && ! VirtualThreads.isSupported()) {
+            System.err.println("Warning: virtual threads require Java 21 or later; " +
+                               "using platform threads.");
+            m = ExecutionMode.PLATFORM_THREADS;
+        } else if ((m == ExecutionMode.SINGLE_THREADED) && ! Continuations.isSupported()) {
+            System.err.println("Warning: single-threaded mode requires Java 21 or later with " +
+                               "--add-exports java.base/jdk.internal.vm=ALL-UNNAMED; " +
+                               "using platform threads.");
+            m = ExecutionMode.PLATFORM_THREADS;
+        }
+        defaultExecutionMode = m;
+        if (m != ExecutionMode.PLATFORM_THREADS) {
+            defaultMetering = true;
+        }
+    }
+
+
+    static public ExecutionMode getExecutionMode() {
+        return defaultExecutionMode;
+    }
+
+
+    /** Data structure that orders creatures' turns.  Both break ties
+        between creatures due at the same time in the order that the
+        creatures were scheduled, so they produce the same turn order
+        and differ only in speed.
+        @see TurnScheduler */
+    public enum SchedulerMode {
+        /** Binary heap, O(log n) per turn.  The default. */
+        INDEXED_HEAP,
+
+        /** Calendar queue, O(1) per turn on average.  Faster on maps
+            with many thousands of creatures. */
+        CALENDAR_QUEUE
+    }
+
+    static private SchedulerMode defaultSchedulerMode = SchedulerMode.INDEXED_HEAP;
+
+    /** Selects the turn scheduler for Simulators started after this call. */
+    static public void setSchedulerMode(SchedulerMode m) {
+        defaultSchedulerMode = m;
+    }
+
+
+    static public SchedulerMode getSchedulerMode() {
+        return defaultSchedulerMode;
+    }
+
+
+    /** If true, Simulators started after the next call to
+        setIntrinsicsEnabled simulate Apples, Treasures, and Flytraps
+        natively.  */
+    static private boolean defaultIntrinsicsEnabled = true;
+
+    /** When enabled (the default), the simulator plays Apples,
+        Treasures, and Flytraps itself, exactly as their run() methods
+        would, instead of giving each one a thread.  Disable to
+        measure the difference. */
+    static public void setIntrinsicsEnabled(boolean e) {
+        defaultIntrinsicsEnabled = e;
+    }
+
+    /** Steady-state window for Simulators started after the next
+        call to setSteadyStateWindow. */
+    static private long defaultSteadyStateWindow = 0;
+
+    /** A natural selection match always ends as soon as no creature
+        that can still act is able to change any species' population,
+        with the result that it would have at the time limit.  When
+        window is positive, it also ends once no population has
+        changed and no enchanted creature has moved for window
+        virtual nanoseconds.  That ends stalemates early, but a
+        creature that was only biding its time loses the rest of the
+        match, and populations can hold still for a few seconds before
+        the creatures first meet, so the window should be long.  Zero,
+        the default, disables the window.  Applies to
+        Simulators started after this call.
+
+        @see #NS_TIME_LIMIT */
+    static public void setSteadyStateWindow(long window) {
+        defaultSteadyStateWindow = window;
+    }
+
+    /** Largest parallel batch for Simulators started after the next
+        call to setMaxParallelTurns. */
+    static private int defaultMaxParallelTurns = 1;
+
+    /** Lets up to n creatures whose turns are due at nearly the same
+        time think at once, on separate cores.  Their actions still
+        take effect one at a time in the order of their turns, and
+        each sees exactly the world that it would have if the turns
+        had run one after another, so the match is unchanged; only
+        the computation between actions overlaps.  This pays off for
+        creatures that think hard between actions.  One, the default,
+        runs one turn at a time.  Requires
+        ExecutionMode.PLATFORM_THREADS.  Applies to Simulators
+        started after this call.
+
+        @see #oneBatch */
+    static public void setMaxParallelTurns(int n) {
+        defaultMaxParallelTurns = Math.max(n, 1);
+    }
+
+
+    static public int getMaxParallelTurns() {
+        return defaultMaxParallelTurns;
+    }
+
+    /** Lockstep rules for Simulators started after the next call to
+        setLockstep. */
+    static private boolean defaultLockstep = false;
+
+    /** When true, creatures take their turns in lockstep ticks
+        instead of in order of their virtual time: in each tick,
+        every creature chooses its next action against the same
+        world, thinking in parallel, and then all of the actions are
+        taken.  Conflicts are resolved by fixed rules:
+
+        <ul>
+          <li> Attacks are taken first, then moves, then everything
+               else, each in order of creature ID.
+          <li> Two creatures that attack each other both fail.
+          <li> Of several creatures that attack the same square,
+               only the first in ID order can succeed.
+          <li> Two or more creatures that move into the same square
+               all fail.  A creature moving into a square that
+               another is leaving moves after it, so a line of
+               creatures can advance together; a cycle of them
+               cannot.
+        </ul>
+
+        Actions cost what they always do, and the time limit is
+        unchanged, but a creature that thinks or acts quickly gets
+        no more turns than a slow one.  Meant for large experiments
+        that do not need exact time priority.  Requires
+        ExecutionMode.PLATFORM_THREADS.  Applies to Simulators
+        started after this call.
+
+        @see #oneTick */
+    static public void setLockstep(boolean lockstep) {
+        defaultLockstep = lockstep;
+    }
+
+
+    static public boolean isLockstep() {
+        return defaultLockstep;
+    }
+
+    /** Metering for classes loaded and Simulators started after the
+        next call to setMetering. */
+    static private boolean defaultMetering = false;
+
+    /** When true, a creature's computation is charged by the number
+        of bytecode instructions that it executes, at
+        INSTRUCTION_TIME each, instead of by the CPU time of its
+        thread.  The charge is then the same on every machine and
+        under any load, so the order of turns does not depend on the
+        host.  Calls into the Java library count as one instruction.
+        A creature is killed when it executes KILL_TIME worth of
+        instructions in one turn, or when it is blocked for
+        METERED_WALL_LIMIT.
+
+        <p>Creature classes are instrumented as they are loaded, so
+        this must be called before loadClass.  Required by
+        ExecutionMode.VIRTUAL_THREADS and SINGLE_THREADED.  Applies
+        to Simulators started after this call.
+
+        @see InstructionMeter */
+    static public void setMetering(boolean metering) {
+        defaultMetering = metering;
+    }
+
+
+    static public boolean isMetering() {
+        return defaultMetering;
+    }
+
+    /** The per-species pheromone limits that Tournament and
+        Benchmark select with setPheromoneLimits */
+    final static public int  TOURNAMENT_MAX_PHEROMONES      = 4096;
+    final static public long TOURNAMENT_MAX_PHEROMONE_BYTES = 256 * 1024;
+
+    /** Per-species pheromone limits for Simulators started after
+        the next call to setPheromoneLimits.  Unlimited by default. */
+    static private int  defaultMaxPheromones     = Integer.MAX_VALUE;
+    static private long defaultMaxPheromoneBytes = Long.MAX_VALUE;
+
+    /** Caps the number of distinct pheromone strings that each
+        species may introduce into a match, and their total size in
+        bytes (two per character).  A species at either cap can still
+        drop pheromones that already exist in the match, but emitting
+        a new string leaves the square unchanged.  The action costs
+        EMIT_PHEROMONE_COST either way.  Applies to Simulators started
+        after this call.  There are no limits unless this is called;
+        Tournament and Benchmark select TOURNAMENT_MAX_PHEROMONES and
+        TOURNAMENT_MAX_PHEROMONE_BYTES.
+
+        @see Species#pheromoneCount */
+    static public void setPheromoneLimits(int maxStrings, long maxBytes) {
+        defaultMaxPheromones     = maxStrings;
+        defaultMaxPheromoneBytes = maxBytes;
+    }
+
     /** One second in nanoseconds. */
     final static public long SECONDS      = (long)1e9;
 
@@ -199,6 +903,16 @@ public final class Simulator implements javax.swing.Icon {
         one turn, this must be at least 0.1 seconds. */
     final static public long KILL_TIME    = (long)(0.25 * SECONDS);
 
+    /** Under metering, virtual nanoseconds charged for each bytecode
+        instruction that a creature executes.  See setMetering. */
+    final static public long INSTRUCTION_TIME = 1;
+
+    /** Under metering, a creature that holds its turn for this much
+        wall-clock time is killed even if it has not executed KILL_TIME
+        worth of instructions, e.g., because it is blocked or is
+        inside the Java library. */
+    final static public long METERED_WALL_LIMIT = 4 * SECONDS;
+
     // All costs are in nanoseconds.  It is worth turning around if a
     // creature plans to move backwards more than three consecutive
     // spaces.
@@ -234,6 +948,19 @@ public final class Simulator implements javax.swing.Icon {
         paused it is in fact just running *very* slowly. */
     static private final long PAUSE_TIME        = Long.MAX_VALUE / 10;
 
+    /** Argument to setSpeed that runs the simulation as fast as
+        possible. */
+    static public final double UNLIMITED_SPEED  = Double.POSITIVE_INFINITY;
+
+    /** Wall-clock nanoseconds per frame of pacing.  The simulation
+        thread runs a frame's worth of turns unthrottled and then
+        sleeps, instead of sleeping between every pair of turns.
+        @see #waitBetweenTurns */
+    static private final long FRAME_TIME        = 20000000;
+
+    /** Direction.values(), which allocates a new array on each call. */
+    static private final Direction[] DIRECTIONS = Direction.values();
+
     /** Should floor blocks be drawn?  If false, a grid is drawn instead. */
     static private final boolean DRAW_FLOOR      = true;
 
@@ -311,16 +1038,16 @@ public final class Simulator implements javax.swing.Icon {
         end of the current turn. */
     private static class DelayedSpawn {
         Class         creatureClass;
-        Point         point;
+        int           location;
         Direction     direction;
         long          initialCPUTime;
         boolean       isEnchanted;
         
         Proxy         proxy;
 
-        public DelayedSpawn(Class c, Point p, Direction d, boolean e, long i) {
+        public DelayedSpawn(Class c, int loc, Direction d, boolean e, long i) {
             creatureClass = c;
-            point = p;
+            location = loc;
             direction = d;
             isEnchanted = e;
             initialCPUTime = i;
@@ -374,13 +1101,75 @@ public final class Simulator implements javax.swing.Icon {
         /** Total number of emitPheromone actions */
         public int       emitCount;
 
+        /** Distinct pheromone strings that this species was first
+            to emit, and their size in bytes.  Each distinct string is
+            stored once per match however many squares carry it.
+            @see Simulator#setPheromoneLimits */
+        public int       pheromoneCount;
+        public long      pheromoneBytes;
+
+        /** emitPheromone actions that were ignored because this
+            species had reached a pheromone limit. */
+        public int       pheromonesRejected;
+
         public int       ascensions;
 
+        /** Number of creatures of this species in the map; at the
+            end of a match, the number that survived.  Not
+            accumulated by accumulateFrom. */
+        public int       population;
+
         public Result.Code resultCode = Result.Code.LOSE;
 
+        /** False if creatureClass inherits the empty Creature.onDeath,
+            in which case dying creatures need no death thread. */
+        final boolean    overridesOnDeath;
+
+        /** True if creatureClass overrides the single-step action,
+            in which case Creature's repeated versions of it call the
+            override n times instead of executing a Plan.
+            @see Creature#moveForward(int) */
+        final boolean    overridesMoveForward;
+        final boolean    overridesMoveBackward;
+        final boolean    overridesDelay;
+
+        /** The last parallel batch that included a creature of this
+            species, and the last in which a creature of this species
+            with an onDeath method was next to a member.
+            @see Simulator#formBatch */
+        int              batchNumber;
+        int              exposedBatchNumber;
+
+        /** creatureClass's public no-argument constructor, looked up
+            on the first spawn */
+        java.lang.reflect.Constructor<?> constructor;
+
         public Species(Class c, int id) {
             creatureClass = c;
             classId = id;
+
+            overridesOnDeath      = overrides(c, "onDeath");
+            overridesMoveForward  = overrides(c, "moveForward");
+            overridesMoveBackward = overrides(c, "moveBackward");
+            overridesDelay        = overrides(c, "delay");
+        }
+
+        /** True if c or one of its superclasses below Creature
+            declares the no-argument method name.  The action methods
+            are protected, so getMethod cannot find them. */
+        static private boolean overrides(Class<?> c, String name) {
+            for (; (c != null) && (c != Creature.class); c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod(name);
+                    return true;
+                } catch (NoSuchMethodException e) {
+                    // Try the superclass
+                } catch (Exception e) {
+                    // Assume that it does
+                    return true;
+                }
+            }
+            return false;
         }
 
         /** Percentage of time spent by this creature in computation [0, 100] */
@@ -425,6 +1214,9 @@ public final class Simulator implements javax.swing.Icon {
             attackCount  += s.attackCount;
             emitCount    += s.emitCount;
             ascensions   += s.ascensions;
+            pheromoneCount     += s.pheromoneCount;
+            pheromoneBytes     += s.pheromoneBytes;
+            pheromonesRejected += s.pheromonesRejected;
         }
 
         public String toString() {
@@ -439,7 +1231,11 @@ public final class Simulator implements javax.swing.Icon {
                 "  move      = " + movePercent()   + "%\n" +
                 "  turn      = " + turnPercent()   + "%\n" +
                 "  attack    = " + attackPercent() + "%\n" +
-                "  emit      = " + emitPercent()   + "%\n";
+                "  emit      = " + emitPercent()   + "%\n" +
+                "\n" +
+                "Pheromones:\n" +
+                "  distinct  = " + pheromoneCount + " (" + pheromoneBytes + " bytes)\n" +
+                "  rejected  = " + pheromonesRejected + "\n";
         }
     }
 
@@ -450,11 +1246,15 @@ public final class Simulator implements javax.swing.Icon {
        Intentionally not a static class because it needs a pointer to
        the simulator.
     */
-    private class Proxy {
+    private class Proxy extends TurnScheduler.Entry {
         public Species   species;
 
-        public Point     position;
-        public Direction direction;
+        /** Volatile, like direction and isEnchanted, because the
+            creature reads them without locking the simulator; see
+            Simulator.observeSelf.  location is a packed square;
+            see Simulator.pack. */
+        public volatile int       location;
+        public volatile Direction direction;
         
         /** Thread time offset at spawn. */
         private long     spawnTime;
@@ -465,6 +1265,10 @@ public final class Simulator implements javax.swing.Icon {
             Used as a priority for selecting the next creature's turn.*/
         public long      totalTimeSinceGameStart;
 
+        public long getScheduledTime() {
+            return totalTimeSinceGameStart;
+        }
+
         /** Virtual CPU time spent by this creature since spawn. */
         public long      computeTimeSinceSpawn = 0;
 
@@ -475,16 +1279,115 @@ public final class Simulator implements javax.swing.Icon {
 
         /** Number of actions this creature has taken. */
         public int       numTurns;
+
+        /** Index in slotTable; also Creature.getSlot(). */
+        public int       slot;
+
+        /** Identifies this creature's job on thread, if that is a
+            CreatureThread */
+        public int       threadJob;
+
+        /** The creature's own thread, or null if it runs on the
+            simulation thread (see continuation, stepper, and
+            isIntrinsic). */
         public Thread    thread;
 
-        public boolean   isEnchanted;
+        /** Under ExecutionMode.SINGLE_THREADED, the continuation
+            that runs the creature; otherwise null. */
+        public Object    continuation;
+
+        /** The creature, if it is a StepCreature.  These are always
+            executed by calling step() directly and have neither a
+            thread nor a continuation. */
+        public StepCreature stepper;
+
+        /** True for an Apple, Treasure, or Flytrap that the simulator
+            plays itself without a thread.
+            @see #intrinsicTurn */
+        public boolean   isIntrinsic;
+
+        public volatile boolean isEnchanted;
 
         /** Instance */
         public Creature  creature;
 
-        public Proxy(Point p, Direction d, Thread t, Creature c, Species s, boolean e, long totalTimeSinceGameStart) {
+        /** True from the moment that the simulator hands the turn to
+            this creature until the creature ends it.  Exactly one of
+            the simulator and the creature's thread is runnable at a
+            time (except during a parallel batch; see oneBatch); the
+            other is parked waiting for this to flip.
+
+            @see #beginTurn
+            @see #endTurn */
+        private volatile boolean hasTurn    = false;
+
+        /** Set when the creature's thread leaves its run() method. */
+        private volatile boolean terminated = false;
+
+        /** Set by kill.  Game logic checks this rather than whether
+            getProxy finds the creature, so that a Proxy held across a
+            kill (as in a lockstep tick) reads as dead.
+            @see #isAlive */
+        private volatile boolean dead       = false;
+
+        /** The thread that called beginTurn and is waiting for the
+            turn to end (normally simThread). */
+        private volatile Thread  waiter;
+
+        /** The rest of the Plan that the simulator is executing for
+            this creature, or null.  The creature's own code is not
+            resumed while this is non-null.
+            @see #executePlan */
+        private volatile Plan    plan;
+
+        /** Index in plan of the run (see Plan.numRuns) of the next action. */
+        private int              planIndex;
+
+        /** Actions of run planIndex already taken. */
+        private int              planRepeat;
+
+        /** True once the last action of the most recent plan has been taken. */
+        private boolean          planCompleted;
+
+        /** True while an action of a plan is being taken, so that
+            endTurn does not give up control of the thread. */
+        private boolean          planStepping;
+
+        /** creatureClock(this) when the current turn began. */
+        private long             turnStartClock;
+
+        /** The instructions that this creature has executed, under
+            metering.  Exhausted when it dies, so that its code stops
+            at the next basic block even on a thread that cannot be
+            stopped.
+            @see #startTurnClock */
+        final InstructionMeter.Meter meter = new InstructionMeter.Meter();
+
+        /** The last parallel batch that included this creature. */
+        private int              batchNumber;
+
+        /** Set while this creature is in a parallel batch and a
+            creature ahead of it in the batch has not finished its
+            turn.  @see #awaitCommit */
+        private volatile boolean gated;
+
+        /** The action that this creature chose for the current
+            lockstep tick, or null if it has not chosen one.  Also set
+            by gated creatures in a parallel batch, where it is not
+            used.  @see #oneTick */
+        private volatile StepCreature.Action declaredAction;
+
+        /** Set when declaredAction lost a lockstep conflict, so that
+            it fails without effect. */
+        private boolean          vetoed;
+
+        /** Set once this creature's action in the current lockstep
+            tick has been taken or scheduled. */
+        private boolean          resolved;
+
+        public Proxy(int loc, Direction d, Thread t, Creature c, Species s, boolean e, long totalTimeSinceGameStart) {
             species   = s;
-            position  = p;
+            location  = loc;
             direction = d;
             thread    = t;
             creature  = c;
@@ -518,42 +1421,394 @@ public final class Simulator implements javax.swing.Icon {
         public void endTurn(long cost) {
             ++numTurns;
 
-            assert ! Thread.holdsLock(Simulator.this) :
+            // A creature without a thread runs on the thread that may
+            // hold the lock, so it cannot deadlock against it
+            assert (thread == null) || ! Thread.holdsLock(Simulator.this) :
             "Cannot end turn while holding the simulator lock";
 
-            if (Thread.currentThread() != thread) {
+            if (! isRunning()) {
                 throw new Error(thread + " tried to ends its turn on " +
                                 Thread.currentThread() + "'s thread.");
             }
 
+            if (((thread == null) || planStepping) && ! hasTurn) {
+                throw new Error(creature.getClassName() + "_" + creature.getId() +
+                                " tried to take more than one action in a turn.");
+            }
+
+            // The cost reschedules this creature, which must wait for
+            // its place in a parallel batch
+            awaitCommit();
             addActionTime(cost);
-        
-            // Make this thread wait (the Simulator will notice the
-            // thread waiting and end the Creature's turn).  We wait
-            // on the Proxy object because unlike the Creature and
-            // Thread objects, it is not visible to the Creature code,
-            // so there is no way for another instance to wake this
-            // one up.
-            try {
-                // Sync on the proxy, not the simulator
-                synchronized (this) {
-                    wait();
+            hasTurn = false;
+
+            if (! planStepping && (stepper == null) && ! isIntrinsic) {
+                waitForTurn();
+            }
+        }
+
+
+        /** Hands the turn back to the simulator and returns when the
+            creature's own code next has the turn.  Must be called
+            after hasTurn is cleared. */
+        private void waitForTurn() {
+            if (continuation != null) {
+                // Jump back into awaitEndOfTurn on the simulation thread
+                if (! Continuations.yield()) {
+                    // The turn cannot end while the creature holds a
+                    // monitor, so stop it; see ExecutionMode.SINGLE_THREADED
+                    meter.exhaust();
+                    throw new ConvertedError(creature.getClassName() + "_" + creature.getId() +
+                                             " tried to end its turn while holding a lock.");
+                }
+                return;
+            }
+
+            // Park until the next turn that is not taken by a plan.
+            // We park on the Proxy object because unlike the Creature
+            // and Thread objects, it is not visible to the Creature
+            // code, so there is no way for another instance to wake
+            // this one up.
+            LockSupport.unpark(waiter);
+            while (! hasTurn || (plan != null)) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    // If interrupted, it is probably because something external
+                    // (like the timer) killed the simulation.  Unwind the
+                    // creature's stack, since threads that cannot be
+                    // stopped (e.g., virtual threads) would otherwise keep
+                    // acting.
+                    throw new ConvertedError("Thread interrupted");
                 }
-            } catch (InterruptedException e) {
-                // If interrupted, it is probably because something external
-                // (like the timer) killed the simulation
-                //System.out.println("Thread interrupted!");
             }
         }
 
-    }
 
-    /** All walls and all thorns are the same instance. */
-    private static class StaticEntity implements Entity {
-        static public StaticEntity wall  = new StaticEntity(Type.WALL,   'X', "Wall.png");
-        static public StaticEntity wall2 = new StaticEntity(Type.WALL,   '#', "Wall2.png");
-        static public StaticEntity wall3 = new StaticEntity(Type.WALL,   '%', "Wall3.png");
-        static public StaticEntity thorn = new StaticEntity(Type.HAZARD, '+', "Thorn.png");
+        /** Called on the creature's own thread before it reads or
+            changes anything outside of itself.  Parks while gated, so
+            that the creatures of a parallel batch act in the order
+            that they would have one at a time. */
+        public void awaitCommit() {
+            while (gated) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    // The simulation is being shut down; see waitForTurn
+                    throw new ConvertedError("Thread interrupted");
+                }
+            }
+        }
+
+
+        /** Called on the creature's own thread at the start of each
+            action.  If gated, tells the simulator which action this
+            creature chose (see oneTick) and then waits in awaitCommit. */
+        public void awaitCommit(StepCreature.Action action) {
+            if (gated) {
+                declaredAction = action;
+                LockSupport.unpark(waiter);
+                awaitCommit();
+            }
+        }
+
+
+        /** In a lockstep tick, sets declaredAction for a creature
+            that has no thread or is following a plan, whose action the
+            simulator takes for it.  A StepCreature's step() is called
+            now, and the action that it returns is taken when the tick
+            is resolved. */
+        private void declareAction() {
+            if (plan != null) {
+                declaredAction = plan.get(planIndex);
+            } else if (numTurns == 0) {
+                // The first turn, which takes no action
+            } else if (stepper != null) {
+                runningProxy = this;
+                try {
+                    declaredAction = stepper.chooseStep();
+                } catch (ConvertedError e) {
+                    terminated = true;
+                } catch (Throwable e) {
+                    reportUncaught(e);
+                    terminated = true;
+                } finally {
+                    runningProxy = null;
+                }
+
+                if (terminated) {
+                    // There is no action left to take
+                    hasTurn = false;
+                }
+            } else if (isIntrinsic && (creature.getClass() == Flytrap.class)) {
+                // See intrinsicTurn
+                declaredAction = ((numTurns & 1) == 1) ? StepCreature.Action.ATTACK : StepCreature.Action.TURN_LEFT;
+            }
+        }
+
+
+        /** Called by the simulator to give this creature the next
+            turn.  Wakes the creature's thread if it is parked in
+            endTurn.  The calling thread is the one that
+            awaitEndOfTurn will wake. */
+        public void beginTurn() {
+            waiter  = Thread.currentThread();
+            hasTurn = true;
+            if ((thread != null) && (plan == null)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+
+        /** True if called on behalf of this creature: from its thread,
+            or from the simulator while it runs the creature's
+            continuation, step(), intrinsic turn, or plan. */
+        public boolean isRunning() {
+            if (runningProxy == this) {
+                return Thread.currentThread() == waiter;
+            } else {
+                return (thread != null) && (Thread.currentThread() == thread);
+            }
+        }
+
+
+        /** Called from the creature's own code.  Takes the first
+            action of p immediately and then gives up control until
+            the simulator has taken the remaining actions on the
+            following turns (see awaitEndOfTurn).
+
+            @return true if every action of p was taken */
+        public boolean executePlan(Plan p) {
+            if (stepper != null) {
+                throw new Error("A StepCreature cannot execute a Plan.");
+            }
+
+            if (p.numRuns() == 0) {
+                return true;
+            }
+
+            planIndex     = 0;
+            planRepeat    = 0;
+            planCompleted = false;
+            planStepping  = true;
+            try {
+                plan = planStep(p);
+            } finally {
+                planStepping = false;
+            }
+
+            waitForTurn();
+            return planCompleted;
+        }
+
+
+        /** Takes the next action of p, in run planIndex, through the
+            simulator's action, so that it costs exactly what a direct
+            call would.  The creature's action methods are not called,
+            because a subclass may override them and this usually runs
+            on the simulation thread.  Returns p if the plan
+            continues, otherwise null. */
+        private Plan planStep(Plan p) {
+            final StepCreature.Action action = p.get(planIndex);
+            boolean succeeded = true;
+            switch (action) {
+            case MOVE_FORWARD:
+                succeeded = Simulator.this.move(creature, 1);
+                break;
+
+            case MOVE_BACKWARD:
+                succeeded = Simulator.this.move(creature, -1);
+                break;
+
+            case TURN_LEFT:
+                Simulator.this.turnLeft(creature);
+                break;
+
+            case TURN_RIGHT:
+                Simulator.this.turnRight(creature);
+                break;
+
+            case ATTACK:
+                succeeded = Simulator.this.attack(creature);
+                break;
+
+            case DELAY:
+                Simulator.this.delay(creature);
+                break;
+
+            default:
+                throw new IllegalArgumentException(action + " cannot appear in a Plan.");
+            }
+            creature.updatePose();
+
+            ++planRepeat;
+            if (planRepeat == p.count(planIndex)) {
+                ++planIndex;
+                planRepeat = 0;
+            }
+
+            if (planIndex == p.numRuns()) {
+                planCompleted = true;
+                return null;
+            } else if (p.stopsAfter(action, succeeded)) {
+                return null;
+            } else {
+                return p;
+            }
+        }
+
+
+        /** Called by the simulator after beginTurn.  Parks until the
+            creature ends its turn, its thread terminates, or
+            timeLimit wall-clock nanoseconds elapse, whichever comes
+            first.
+
+            <p>A creature without a thread (a continuation, a
+            StepCreature, or an intrinsic) is instead run on the
+            calling thread until it ends its turn, without any time
+            limit.  So is the next action of a creature's plan.
+
+            @return true if the creature has given the turn back */
+        public boolean awaitEndOfTurn(long timeLimit) throws InterruptedException {
+            if (((thread == null) || (plan != null)) && ! hasTurn) {
+                // No turn was given, so there is nothing to run
+                return true;
+            }
+
+            if (plan != null) {
+                // Take the next action of the plan without waking
+                // the creature
+                runningProxy = this;
+                planStepping = true;
+                try {
+                    plan = planStep(plan);
+                } catch (ConvertedError e) {
+                    // The creature is dead or the game is over
+                    hasTurn = false;
+                    plan = null;
+                } catch (Throwable e) {
+                    reportUncaught(e);
+                    terminated = true;
+                    hasTurn = false;
+                    plan = null;
+                } finally {
+                    planStepping = false;
+                    runningProxy = null;
+                }
+                return true;
+            }
+
+            if (continuation != null) {
+                runningProxy = this;
+                InstructionMeter.attach(meter);
+                watchdog.begin(this);
+                try {
+                    Continuations.run(continuation);
+                } catch (Throwable e) {
+                    reportUncaught(e);
+                } finally {
+                    watchdog.end();
+                    InstructionMeter.attach(null);
+                    runningProxy = null;
+                }
+                if (Continuations.isDone(continuation)) {
+                    terminated = true;
+                }
+                if (meter.isExhausted()) {
+                    // Stopped by its Meter or the watchdog.  Charge
+                    // the rest of the turn so that oneTurn converts
+                    // it into an Apple.
+                    meter.instructions = Math.max(meter.instructions,
+                                                  turnStartClock / INSTRUCTION_TIME + KILL_TIME / INSTRUCTION_TIME);
+                }
+                return true;
+            }
+
+            if ((stepper != null) || isIntrinsic) {
+                runningProxy = this;
+                InstructionMeter.attach(meter);
+                try {
+                    if (numTurns == 0) {
+                        // The turn in which a creature thread would
+                        // start and immediately end its turn
+                        endTurn(0);
+                    } else if (stepper != null) {
+                        stepper.takeStep();
+                    } else {
+                        intrinsicTurn();
+                    }
+                } catch (ConvertedError e) {
+                    terminated = true;
+                } catch (Throwable e) {
+                    reportUncaught(e);
+                    terminated = true;
+                } finally {
+                    InstructionMeter.attach(null);
+                    runningProxy = null;
+                }
+                return true;
+            }
+
+            final long deadline = System.nanoTime() + timeLimit;
+            while (hasTurn && ! terminated) {
+                final long timeLeft = deadline - System.nanoTime();
+                if (timeLeft <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, timeLeft);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        }
+
+
+        /** Called from the creature's own thread when it leaves run(),
+            whether normally or by an exception. */
+        public void markTerminated() {
+            terminated = true;
+            if (thread != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+
+        public boolean isTerminated() {
+            return terminated;
+        }
+
+
+        /** Takes the next action that the built-in creature's run()
+            method would.  Flytrap.run alternates attack() and
+            turnLeft(), starting with attack() on the first turn after
+            spawning; Apple.run and Treasure.run return immediately. */
+        private void intrinsicTurn() {
+            if (creature.getClass() == Flytrap.class) {
+                if ((numTurns & 1) == 1) {
+                    creature.attack();
+                } else {
+                    creature.turnLeft();
+                }
+            } else {
+                terminated = true;
+            }
+        }
+
+
+        /** Reports an exception thrown by creature code running on
+            the simulation thread the way that an uncaught exception
+            on a creature thread would be. */
+        private void reportUncaught(Throwable e) {
+            System.err.print("Exception in " + creature.getClassName() + "_" + creature.getId() + " ");
+            e.printStackTrace();
+        }
+    }
+
+    /** All walls and all thorns are the same instance. */
+    private static class StaticEntity implements Entity {
+        static public StaticEntity wall  = new StaticEntity(Type.WALL,   'X', "Wall.png");
+        static public StaticEntity wall2 = new StaticEntity(Type.WALL,   '#', "Wall2.png");
+        static public StaticEntity wall3 = new StaticEntity(Type.WALL,   '%', "Wall3.png");
+        static public StaticEntity thorn = new StaticEntity(Type.HAZARD, '+', "Thorn.png");
         static public StaticEntity floor = new StaticEntity(Type.EMPTY,  ' ', "Floor.png");
         static public StaticEntity mud   = new StaticEntity(Type.EMPTY,  '.', "Mud.png");
         static public Image        fog   = loadImage("Fog.png");
@@ -593,65 +1848,273 @@ public final class Simulator implements javax.swing.Icon {
     //                         Instance State                                //
     //                                                                       //
 
-    /** Describes the environment of a Darwin square independent of the
-        Entity inside it. */
-    private static class Environment {
+    /** Largest supported map width or height */
+    static private final int MAX_MAP_SIZE = 1 << 16;
+
+    /** Inside the engine a square is packed into one int, x in the
+        low 16 bits and y in the high 16, so that moving, turning,
+        attacking, and observing never allocate.  Points are only
+        created for the Creature and Observation APIs.  (x, y) must
+        be in bounds. */
+    static private int pack(int x, int y) {
+        return (y << 16) | x;
+    }
+
+    static private int xOf(int packed) {
+        return packed & 0xFFFF;
+    }
+
+    static private int yOf(int packed) {
+        return packed >>> 16;
+    }
+
+
+    /** Base class of the per-square stores.  The map is divided
+        into CHUNK_SIZE x CHUNK_SIZE chunks, and a subclass allocates
+        the storage for a chunk only when something other than the
+        default (empty floor) is written into it.  Memory therefore
+        scales with the contents of the map rather than its area,
+        while a small or crowded map simply has every chunk
+        allocated.  Reading a square costs one more array load than
+        a flat array. */
+    private static abstract class ChunkedStore {
+        static protected final int CHUNK_SHIFT = 5;
+        static protected final int CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+        static protected final int CHUNK_MASK  = CHUNK_SIZE - 1;
+
+        /** Squares per chunk */
+        static protected final int CHUNK_AREA  = CHUNK_SIZE * CHUNK_SIZE;
+
+        private final int          chunksWide;
+        protected final int        numChunks;
+
+        protected ChunkedStore(int width, int height) {
+            chunksWide = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+            numChunks  = chunksWide * ((height + CHUNK_MASK) >> CHUNK_SHIFT);
+        }
+
+        /** Index of the chunk containing (x, y) */
+        protected final int chunk(int x, int y) {
+            return (x >> CHUNK_SHIFT) + (y >> CHUNK_SHIFT) * chunksWide;
+        }
+
+        /** Index of (x, y) within its chunk */
+        protected final int offset(int x, int y) {
+            return (x & CHUNK_MASK) + ((y & CHUNK_MASK) << CHUNK_SHIFT);
+        }
+    }
+
+
+    /** The Entity occupying each square: walls, thorns, and
+        creatures.  Null for an empty square. */
+    private static class EntityGrid extends ChunkedStore {
+        private final Entity[][] entity;
+
+        /** Which squares are non-null, for lines of sight.  Kept
+            current by set. */
+        public final OccupancyIndex occupancy;
+
+        /** Empty squares that are not shrines, for random placement.
+            Occupancy is kept current by set; the map loader reserves
+            the shrines. */
+        public final FreeCellIndex  freeCells;
+
+        public EntityGrid(int width, int height) {
+            super(width, height);
+            entity = new Entity[numChunks][];
+            occupancy = new OccupancyIndex(width, height);
+            freeCells = new FreeCellIndex(width, height);
+        }
+
+        /** (x, y) must be in bounds */
+        public Entity get(int x, int y) {
+            final Entity[] c = entity[chunk(x, y)];
+            return (c == null) ? null : c[offset(x, y)];
+        }
+
+        public Entity get(int packed) {
+            return get(xOf(packed), yOf(packed));
+        }
+
+        public void set(int x, int y, Entity e) {
+            final int i = chunk(x, y);
+            Entity[] c = entity[i];
+            if (c == null) {
+                if (e == null) {
+                    return;
+                }
+                c = entity[i] = new Entity[CHUNK_AREA];
+            }
+            c[offset(x, y)] = e;
+            occupancy.set(x, y, e != null);
+            freeCells.setOccupied(x, y, e != null);
+        }
+
+        public void set(int packed, Entity e) {
+            set(xOf(packed), yOf(packed), e);
+        }
+    }
+
+
+    /** Describes the environment of every Darwin square independent
+        of the Entity inside it.  Each chunk holds flat arrays, so
+        that reading the mud under a creature touches one byte instead
+        of following pointers to a per-square object. */
+    private static class Environment extends ChunkedStore {
         public static final int   NO_SHRINE        = Creature.UNINITIALIZED_CLASS_ID;
         public static final int   TO_BE_DETERMINED = -1;
 
-        /** Set by the map.  Fog limits visibility an movement.  The
-            fog status of a square never changes.  The presence of fog
-            implicitly makes new pathfinding and hiding/hunting
-            strategies viable. */
-        public boolean      inFog     = false;
+        /** Bits of flags */
+        static private final byte FOG = 1;
+        static private final byte MUD = 2;
 
-        /** True if this square contains mud */
-        public boolean      inMud    = false;
+        /** FOG and MUD bits of each square.  Set by the map.  Fog
+            limits visibility an movement.  The fog status of a square
+            never changes.  The presence of fog implicitly makes new
+            pathfinding and hiding/hunting strategies viable. */
+        private final byte[][]    flags;
 
         /** NO_SHRINE if there is no shrine, otherwise the classId of
-            the species that owns the shrine.  Temporarily TO_BE_DETERMINED
-            during map loading.
-        */
-        public int          shrineClassId  = NO_SHRINE;
+            the species that owns the shrine.  Temporarily
+            TO_BE_DETERMINED during map loading. */
+        private final int[][]     shrineClassId;
         
-        /** Dropped by Creatures.  A dropped pheroemone overwrites any
-            previous pheromone and lasts indefinitely. The pheromone
-            in an Observation returned by Creature.observe is never
-            null.
+        /** Index into pheromoneTable of the pheromone dropped on
+            each square; 0 is the empty pheromone.  A dropped
+            pheromone overwrites any previous pheromone and lasts
+            indefinitely.
             
             Pheromones provide a mechanism for Creatures to easily
             communicate with other species for collusion.
         */
-        public String       pheromone = "";
-        
-        public Environment() {
+        private final int[][]     pheromone;
+
+        /** Every distinct pheromone dropped so far.  Replaced when it
+            grows, so volatile for creatures reading their own square
+            without the simulator lock. */
+        private volatile String[] pheromoneTable = {""};
+        private int               numPheromones = 1;
+        private final Map<String, Integer> pheromoneIndex = new HashMap<String, Integer>();
+
+        /** Per-species limits; see Simulator.setPheromoneLimits */
+        private final int         maxPheromones;
+        private final long        maxPheromoneBytes;
+
+        public Environment(int width, int height, int maxPheromones, long maxPheromoneBytes) {
+            super(width, height);
+            this.maxPheromones     = maxPheromones;
+            this.maxPheromoneBytes = maxPheromoneBytes;
+            flags         = new byte[numChunks][];
+            shrineClassId = new int[numChunks][];
+            pheromone     = new int[numChunks][];
+            pheromoneIndex.put("", 0);
+        }
+
+        private boolean hasFlag(int x, int y, byte bit) {
+            final byte[] c = flags[chunk(x, y)];
+            return (c != null) && ((c[offset(x, y)] & bit) != 0);
+        }
+
+        private void setFlag(int x, int y, byte bit) {
+            final int i = chunk(x, y);
+            if (flags[i] == null) {
+                flags[i] = new byte[CHUNK_AREA];
+            }
+            flags[i][offset(x, y)] |= bit;
         }
-    
-        public Environment(boolean inFog, String pheromone) {
-            this.inFog = inFog;
-            this.pheromone = (pheromone == null) ? "" : pheromone;
+
+        public boolean inFog(int x, int y) {
+            return hasFlag(x, y, FOG);
         }
-        
-        public Environment clone() {
-            return new Environment(inFog, pheromone);
+
+        public boolean inFog(int packed) {
+            return inFog(xOf(packed), yOf(packed));
         }
-        
-        public boolean equals(Environment e) {
-            return 
-                (e.inFog == inFog) &&
-                (e.pheromone.equals(pheromone)) &&
-                (e.shrineClassId == shrineClassId) &&
-                (e.inMud == inMud);
+
+        public void setFog(int x, int y) {
+            setFlag(x, y, FOG);
         }
-        
-        public int hashCode() {
-            return pheromone.hashCode() ^ (inFog ? 0xFF : 0x00) ^ (inMud ? 0xFF00 : 0x0000) ^ shrineClassId;
+
+        public boolean inMud(int x, int y) {
+            return hasFlag(x, y, MUD);
         }
-        
-        public String toString() {
-            return "Environment { inFog = " + inFog + 
-                "; pheromone = \"" + pheromone + "\"; inMud = " + inMud +
-                "; shrineClassId = " + shrineClassId + "}"; 
+
+        public boolean inMud(int packed) {
+            return inMud(xOf(packed), yOf(packed));
+        }
+
+        public void setMud(int x, int y) {
+            setFlag(x, y, MUD);
+        }
+
+        public int shrineClassId(int x, int y) {
+            final int[] c = shrineClassId[chunk(x, y)];
+            return (c == null) ? NO_SHRINE : c[offset(x, y)];
+        }
+
+        public int shrineClassId(int packed) {
+            return shrineClassId(xOf(packed), yOf(packed));
+        }
+
+        public void setShrineClassId(int x, int y, int id) {
+            final int i = chunk(x, y);
+            if (shrineClassId[i] == null) {
+                shrineClassId[i] = new int[CHUNK_AREA];
+                Arrays.fill(shrineClassId[i], NO_SHRINE);
+            }
+            shrineClassId[i][offset(x, y)] = id;
+        }
+
+        /** Never null */
+        public String getPheromone(int x, int y) {
+            final int[] c = pheromone[chunk(x, y)];
+            return (c == null) ? "" : pheromoneTable[c[offset(x, y)]];
+        }
+
+        public String getPheromone(int packed) {
+            return getPheromone(xOf(packed), yOf(packed));
+        }
+
+        /** Drops pheromone s on p on behalf of a creature of species
+            owner, which is charged for s if it is new to the match.
+            Returns false, leaving the square unchanged, if s is new
+            and owner is at its pheromone limit.  Call while holding
+            the simulator lock. */
+        public boolean setPheromone(int packed, String s, Species owner) {
+            if (s == null) {
+                s = "";
+            }
+
+            Integer i = pheromoneIndex.get(s);
+            if (i == null) {
+                final long bytes = 2L * s.length();
+                if ((owner.pheromoneCount >= maxPheromones) ||
+                    (owner.pheromoneBytes + bytes > maxPheromoneBytes)) {
+                    ++owner.pheromonesRejected;
+                    return false;
+                }
+                ++owner.pheromoneCount;
+                owner.pheromoneBytes += bytes;
+
+                i = numPheromones;
+                if (numPheromones == pheromoneTable.length) {
+                    pheromoneTable = Arrays.copyOf(pheromoneTable, numPheromones * 2);
+                }
+                pheromoneTable[numPheromones] = s;
+                ++numPheromones;
+                pheromoneIndex.put(s, i);
+            }
+
+            final int c = chunk(xOf(packed), yOf(packed));
+            if (pheromone[c] == null) {
+                if (i == 0) {
+                    // Already empty
+                    return true;
+                }
+                pheromone[c] = new int[CHUNK_AREA];
+            }
+            pheromone[c][offset(xOf(packed), yOf(packed))] = i;
+            return true;
         }
     }
 
@@ -659,17 +2122,21 @@ public final class Simulator implements javax.swing.Icon {
     private String          title;
     
     /** The simulator's own thread */
-    private Thread          simThread;
+    private volatile Thread simThread;
+
+    /** Under ExecutionMode.SINGLE_THREADED, times each creature's
+        turn; otherwise null. */
+    private Watchdog        watchdog;
 
     /** Dimensions of the map */
     private int             width;
     private int             height;
 
     /** The world map */
-    private Entity[][]      map;
+    private EntityGrid      map;
 
-    /** Fog in the world map */
-    private Environment[][] environment;
+    /** Fog, mud, shrines, and pheromones in the world map */
+    private Environment     environment;
 
     /** If true, paintIcon renders a 3D view */
     private boolean         view3D = true;
@@ -697,8 +2164,19 @@ public final class Simulator implements javax.swing.Icon {
         @see #processDeathQueue  */
     private final Vector<Proxy>           deathQueue = new Vector<Proxy>();
 
-    /** Metadata about Creature instances in the map */
-    final private Map<Creature, Proxy>    proxyTable = new HashMap<Creature, Proxy>();
+    /** Metadata about Creature instances in the map, indexed by
+        Creature.getSlot().  Null entries are free slots.  Replaced
+        when it grows, so it is volatile for readers outside the lock.
+
+        @see allocateSlot, freeSlot */
+    private volatile Proxy[]              slotTable = new Proxy[64];
+
+    /** Slots below this index have been handed out at least once. */
+    private int                           numSlots;
+
+    /** Stack of recycled slots below numSlots */
+    private int[]                         freeSlots = new int[64];
+    private int                           numFreeSlots;
 
     /** Maps Creature classes to species descriptors.  This is passed
         to the Result at the end. */
@@ -715,35 +2193,125 @@ public final class Simulator implements javax.swing.Icon {
     /** Used to disable the assertions around oneTurn when a creature spawns. */        
     private volatile boolean              spawning = false;
 
-    /** Elapsed time for all creature turns. */
-    private long                          totalElapsedTime;
+    /** While the map is loading, creatures spawned from it whose
+        first turn has not yet been awaited, in map order.  Null
+        otherwise.  @see #awaitInitialSpawns */
+    private ArrayList<Proxy>              initialSpawns;
+
+    /** Elapsed time for all creature turns.  Written under the
+        lock on this; volatile so that getTime need not take it. */
+    private volatile long                 totalElapsedTime;
 
     /** Wall-clock time in nanoseconds to wait between turns.
      Volatile because it is written and read in an unsychronized
      method.*/
     private volatile long                 intraTurnTime = PAUSE_TIME;
 
-    /** Number of each type of creature present in the world.  Only
-        species with a non-zero number of instances appear in the
-        Map. 
+    /** Virtual nanoseconds per wall-clock nanosecond when the speed
+        was set by setSpeed, or NaN when it was set by
+        setIntraTurnTime. */
+    private volatile double               speed = Double.NaN;
+
+    /** Set when the speed changes so that the simulation thread
+        restarts its pacing from the current time. */
+    private volatile boolean              paceChanged = true;
+
+    /** Pacing state, used only by the simulation thread in
+        waitBetweenTurns: the wall-clock time at which pacing last
+        restarted, the wall-clock time that the turns since then are
+        allowed to take, and the time of the creature at the front
+        of the turnQueue after the previous turn. */
+    private long                          paceStartTime;
+    private long                          paceAllowedTime;
+    private long                          paceVirtualTime;
+
+    /** Number of species, including Apples, Treasures, and Flytraps,
+        with a non-zero Species.population.
 
         @see incCount, decCount */
-    final private Map<Class, Integer>     creatureCount = new HashMap<Class, Integer>();
+    private int                           numSpeciesPresent;
+
+    /** The built-in species, cached from speciesTable so that the
+        end of the game can be detected without a lookup. */
+    private Species                       appleSpecies;
+    private Species                       flytrapSpecies;
+    private Species                       treasureSpecies;
+
+    /** The first species to reach NS_ASCENSIONS_TO_WIN, or null. */
+    private Species                       ascendedSpecies;
+
+    /** Copied from defaultSteadyStateWindow when a simulation starts. */
+    private long                          steadyStateWindow;
+
+    /** Incremented whenever the population of any species changes. */
+    private int                           numPopulationChanges;
+
+    /** totalElapsedTime at the last population change or move by
+        an enchanted creature.  Volatile because moves are made on
+        creature threads. */
+    private volatile long                 lastChangeTime;
+
+    /** numPopulationChanges and turnQueue.size() when
+        detectSteadyState last searched the map, so that it does not
+        search again until something changes. */
+    private int                           checkedPopulationChanges;
+    private int                           checkedQueueSize;
+
+    /** Set by detectSteadyState when a natural selection match can
+        no longer change.  makeResult then ends it as if at the time
+        limit. */
+    private volatile boolean              steadyState;
+
+    /** Built by the first call to getResult after the game ends. */
+    private volatile Result               finalResult;
 
     /** Drawn highlighted.  For UI only */
     private Creature                      selectedCreature;
 
-    /** Threadgroup containing all creature threads */
+    /** Threadgroup containing all creature threads.  Virtual
+        threads cannot be placed in a group, so under
+        ExecutionMode.VIRTUAL_THREADS this is empty. */
     private ThreadGroup                   creatureThreadGroup;
 
+    /** Threads for creatures in PLATFORM_THREADS mode */
+    private CreatureThreadPool            creatureThreadPool;
+
+    /** Copied from defaultExecutionMode when a simulation starts. */
+    private ExecutionMode                 executionMode;
+
+    /** Copied from defaultIntrinsicsEnabled when a simulation starts. */
+    private boolean                       intrinsicsEnabled;
+
+    /** Copied from defaultMaxParallelTurns when a simulation starts. */
+    private int                           maxParallelTurns;
+
+    /** The creatures taking their turns together, in turn order.
+        @see #oneBatch */
+    final private ArrayList<Proxy>        batch = new ArrayList<Proxy>();
+
+    /** Incremented for each batch.  Never reset, so that stale
+        Species.batchNumber values cannot match. */
+    private int                           batchNumber;
+
+    /** Copied from defaultLockstep when a simulation starts. */
+    private boolean                       lockstep;
+
+    /** Copied from defaultMetering when a simulation starts. */
+    private boolean                       metering;
+
+    /** The creature without a thread (see Proxy.thread) that is
+        currently running, if any. */
+    private Proxy                         runningProxy;
+
     /** True when a simulation is loaded and running.*/
     private boolean                       live = false;
 
     /** Ranks all creatures by their elapsed execution time. */
-    private PriorityQueue<Proxy>          turnQueue;
+    private TurnScheduler<Proxy>          turnQueue;
 
-    /** Time on the current creature's thread when its current turn started. 
-        @see getTurnTime */
+    /** Time on the current creature's clock when its current turn started. 
+        @see getTurnTime
+        @see creatureClock */
     private long                          currentTurnThreadStartTime;
 
     /** Time limit for the current map, in nanoseconds.  Set in the
@@ -788,14 +2356,6 @@ public final class Simulator implements javax.swing.Icon {
 
         prepareColors();
 
-        // The priority queue sorts on elapsed time
-        turnQueue = new PriorityQueue<Proxy>
-            (10, // initial capacity
-             new Comparator<Proxy>() {
-                public int compare(Proxy a, Proxy b) {
-                    return (int)(a.totalTimeSinceGameStart - b.totalTimeSinceGameStart);
-                }});
-
         calibrateVirtualCPU();
 
         // System.out.println(getInfo());
@@ -876,6 +2436,11 @@ public final class Simulator implements javax.swing.Icon {
         return r * 1000000 / realCPUVirtual1000000ns;
     }
 
+    /** Inverse of realCPUToVirtualCPUTime. */
+    long virtualCPUToRealCPUTime(long v) {
+        return v * realCPUVirtual1000000ns / 1000000;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     //                                                                       //
     //                            Accessors                                  //
@@ -885,7 +2450,7 @@ public final class Simulator implements javax.swing.Icon {
     public synchronized String getToolTip(Point p) {
         String s = "(" + p.x + ", " + p.y + ")";
 
-        final Entity e = map[p.x][p.y];
+        final Entity e = map.get(p.x, p.y);
         if (e != null) {
             switch (e.getType()) {
             case EMPTY:
@@ -905,12 +2470,12 @@ public final class Simulator implements javax.swing.Icon {
             }
         }
 
-        final Environment env = environment[p.x][p.y];
-        if (env.pheromone.length() > 0) {
-            s += ", Pheromone = \"" + env.pheromone + "\"";
+        final String pheromone = environment.getPheromone(p.x, p.y);
+        if (pheromone.length() > 0) {
+            s += ", Pheromone = \"" + pheromone + "\"";
         }
 
-        if (env.inFog) {
+        if (environment.inFog(p.x, p.y)) {
             s += ", in fog";
         }
 
@@ -969,21 +2534,28 @@ public final class Simulator implements javax.swing.Icon {
 
 
     /** Clones the position.  Throws a ConvertedError if the Creature is
-        not in the world. */
-    public synchronized Point getPosition(Creature e) {
+        not in the world.
+
+        <p>This and the other queries that a creature makes about
+        itself (getDirection, isEnchanted, inFog, inMud,
+        shrineClassId, getPheromone, observeSelf) take no lock.  A
+        creature's own state changes only during its own turn, and
+        the fields that they read are volatile. */
+    public Point getPosition(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
             throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
                                      " cannot update its position because it is dead.");
         } else {
-            return (Point)(p.position.clone());
+            final int loc = p.location;
+            return new Point(xOf(loc), yOf(loc));
         }
     }
 
 
     /** Throws a ConvertedError if the Creature is not in the world. */
-    public synchronized Direction getDirection(Creature e) {
+    public Direction getDirection(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
@@ -995,7 +2567,7 @@ public final class Simulator implements javax.swing.Icon {
     }
 
     /** Throws a ConvertedError if the Creature is not in the world. */
-    public synchronized boolean isEnchanted(Creature e) {
+    public boolean isEnchanted(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
@@ -1011,14 +2583,14 @@ public final class Simulator implements javax.swing.Icon {
         Fog is an experimental feature that will not appear on any
         tournament map in 2011.  Throws a ConvertedError if the
         Creature is not in the world. */
-    public synchronized boolean inFog(Creature e) {
+    public boolean inFog(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
             throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
                                      " cannot sense fog because it is dead.");
         } else {
-            return environment[p.position.x][p.position.y].inFog;
+            return environment.inFog(p.location);
         }
     }
 
@@ -1026,14 +2598,14 @@ public final class Simulator implements javax.swing.Icon {
     /** Returns true if the Creature's current location is in mud.
         Throws a ConvertedError if the Creature is not in the
         world. */
-    public synchronized boolean inMud(Creature e) {
+    public boolean inMud(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
             throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
                                      " cannot sense mud because it is dead.");
         } else {
-            return environment[p.position.x][p.position.y].inMud;
+            return environment.inMud(p.location);
         }
     }
 
@@ -1043,28 +2615,51 @@ public final class Simulator implements javax.swing.Icon {
         {@link Creature#UNINITIALIZED_CLASS_ID} 
         Throws a ConvertedError if the Creature is not in the
         world. */
-    public synchronized int shrineClassId(Creature e) {
+    public int shrineClassId(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
             throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
                                      " cannot sense shrines because it is dead.");
         } else {
-            return environment[p.position.x][p.position.y].shrineClassId;
+            return environment.shrineClassId(p.location);
         }
     }
 
 
     /** Throws a ConvertedError if the Creature is not in the world. */
-    public synchronized String getPheromone(Creature e) {
+    public String getPheromone(Creature e) {
         assert e != null;
         final Proxy p = getProxy(e);
         if (p == null) {
             throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
                                      " cannot sense a pheromone because it is dead.");
         } else {
-            return environment[p.position.x][p.position.y].pheromone;
+            return environment.getPheromone(p.location);
+        }
+    }
+
+
+    /** Everything that a creature can sense about itself without
+        taking an action, read with one lookup.  Unlike calling the
+        individual queries, the fog, mud, shrine, and pheromone are
+        guaranteed to describe the returned position.  Throws a
+        ConvertedError if the Creature is not in the world. */
+    public Observation observeSelf(Creature e) {
+        assert e != null;
+        awaitCommit(e);
+        final Proxy p = getProxy(e);
+        if (p == null) {
+            throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
+                                     " cannot observe itself because it is dead.");
         }
+
+        final int loc = p.location;
+        final Observation obs = 
+            new Observation(new Point(xOf(loc), yOf(loc)), e.getClassName(), e.getClassId(), e.getId(), p.direction,
+                            getTime(), environment.inFog(loc), environment.inMud(loc), environment.shrineClassId(loc));
+        obs.pheromone = environment.getPheromone(loc);
+        return obs;
     }
 
     
@@ -1075,7 +2670,7 @@ public final class Simulator implements javax.swing.Icon {
             return null;
         }
 
-        final Entity c = map[x][y];
+        final Entity c = map.get(x, y);
 
         if ((c != null) && (c instanceof Creature)) {
             return (Creature)c;
@@ -1101,7 +2696,7 @@ public final class Simulator implements javax.swing.Icon {
         began. This is the total time consumed by creatures, which
         is typically much longer than the wall-clock time for the
         simulation if run with no delay between turns. */
-    synchronized public long getTime() {
+    public long getTime() {
         return totalElapsedTime;
     }
 
@@ -1127,12 +2722,31 @@ public final class Simulator implements javax.swing.Icon {
         1 millisecond = 1e6 nanoseconds,
         1 second = 1e9 nanoseconds
 
-        Minimum value is 10000. */
+        The wait is paced over frames rather than taken after each
+        turn, so this sets the mean rate of turns: at 1 ms, about 20
+        turns run back to back and then the simulator sleeps for
+        what remains of the 20 ms frame.  Zero runs as fast as
+        possible.  Replaces any speed set by setSpeed. */
     public void setIntraTurnTime(long t) {
         // Do not synchronize...this must be writable while other
         // synchronized calls are going on.  intraTurnTime is volatile
         // instead.
-        intraTurnTime = Math.max(t, (long)10000);
+        intraTurnTime = Math.max(t, 0);
+        speed = Double.NaN;
+        paceChanged = true;
+    }
+
+
+    /** Runs the simulation at virtualPerWall virtual seconds of
+        creature time per wall-clock second, measured on the clock of
+        the creature whose turn is next, so that creatures move at the
+        same pace however many of them there are.  Zero pauses;
+        UNLIMITED_SPEED runs as fast as possible.  Replaces any time
+        set by setIntraTurnTime. */
+    public void setSpeed(double virtualPerWall) {
+        intraTurnTime = (virtualPerWall > 0) ? 0 : PAUSE_TIME;
+        speed = Math.max(virtualPerWall, 0);
+        paceChanged = true;
     }
 
 
@@ -1174,10 +2788,10 @@ public final class Simulator implements javax.swing.Icon {
 
     /** Returns the number of different species left alive, excluding Flytraps.*/
     public synchronized int getNumSpeciesLeft() {
-        int count = creatureCount.size();
+        int count = numSpeciesPresent;
 
         // Exclude Flytraps
-        if (creatureCount.get(Flytrap.class) != null) {
+        if (flytrapSpecies.population > 0) {
             --count;
         }
 
@@ -1186,140 +2800,252 @@ public final class Simulator implements javax.swing.Icon {
 
     /** Returns the number of creatures of this species alive in the map. */
     public synchronized int getCreatureCount(Class c) {
-        final Integer i = creatureCount.get(c);
-        if (i == null) {
+        final Species species = speciesTable.get(c);
+        if (species == null) {
             return 0;
         } else {
-            return i;
+            return species.population;
         }
     }
 
+    /** Number of species present other than Flytraps, Apples, and Treasures. */
+    private int getNumCompetingSpecies() {
+        return numSpeciesPresent - 
+            (((flytrapSpecies.population  > 0) ? 1 : 0) +
+             ((appleSpecies.population    > 0) ? 1 : 0) + 
+             ((treasureSpecies.population > 0) ? 1 : 0));
+    }
+
+
+    /** Looking this up is surprisingly expensive on some JVMs, and
+        it is needed twice per turn. */
+    final private static java.lang.management.ThreadMXBean threadMXBean =
+        java.lang.management.ManagementFactory.getThreadMXBean();
 
     /** Returns the amount of user time consumed by the specified
         thread since it was started in nanoseconds */
     final private static long getThreadUserTime(Thread thread) {
-        return java.lang.management.ManagementFactory.getThreadMXBean().getThreadUserTime(thread.getId());
+        return threadMXBean.getThreadUserTime(thread.getId());
     }
 
     
-    /** Returns the time in virtual nanoseconds since the current creature's
-        current turn started. Updated continuously.*/
-    public long getTurnTime() {
-        assert (Thread.currentThread() != simThread);
-        return realCPUToVirtualCPUTime(getThreadUserTime(Thread.currentThread()) - currentTurnThreadStartTime);
+    /** The clock against which proxy's computation is measured:
+        the user time of its thread.  Under metering, the
+        instructions counted in its Meter at INSTRUCTION_TIME each.
+        A creature without a thread runs on the calling thread, so
+        that thread's time is used.
+
+        @see clockToVirtualTime */
+    private long creatureClock(Proxy proxy) {
+        if (metering) {
+            return proxy.meter.instructions * INSTRUCTION_TIME;
+        } else if (proxy.thread == null) {
+            return getThreadUserTime(Thread.currentThread());
+        } else {
+            return getThreadUserTime(proxy.thread);
+        }
     }
 
 
-    /**
-       Returns a description of the final outcome, or null if the game has not yet ended.
-       
-       A creature has won if:
-       <ul>
-         <li> It is the only species other than Flytraps and Apples remaining, OR
-         <li> Time has elapsed and it has more instances than any other Creature
-         and there are no Treasures on the map.
-       </ul>
-     */
-    public Result getResult() {
-        synchronized (performanceLock) {
-            // Number of instances
-            final int numFlytraps  = getCreatureCount(Flytrap.class);
-            final int numApples    = getCreatureCount(Apple.class);
-            final int numTreasures = getCreatureCount(Treasure.class);
-
-            // Number of species
-            final int numSpecies   = creatureCount.size() - 
-                (((numFlytraps  > 0) ? 1 : 0) +
-                 ((numApples    > 0) ? 1 : 0) + 
-                 ((numTreasures > 0) ? 1 : 0));
-            
-            final long t = getTime();
-            
-            if ((numSpecies == 0) || (turnQueue.size() == 0)) {
-                // Everyone lost
-                
-                for (Species species : speciesTable.values()) {
-                    species.resultCode = Result.Code.LOSE;
+    /** Sets proxy.turnStartClock for a turn about to begin.  Under
+        metering, also limits proxy's Meter to KILL_TIME worth of
+        instructions for the turn, so that the creature's own code
+        stops if it runs past the limit. */
+    private void startTurnClock(Proxy proxy) {
+        proxy.turnStartClock = creatureClock(proxy);
+        if (metering) {
+            proxy.meter.limit = proxy.meter.instructions + KILL_TIME / INSTRUCTION_TIME;
+        }
+    }
+
+
+    /** Converts an interval of creatureClock to virtual nanoseconds.
+        The metered clock is already virtual. */
+    private long clockToVirtualTime(long dt) {
+        return metering ? dt : realCPUToVirtualCPUTime(dt);
+    }
+
+    
+    /** Returns the time in virtual nanoseconds since creature e's
+        current turn started. Updated continuously. */
+    public long getTurnTime(Creature e) {
+        final Proxy proxy = getProxy(e);
+        if (proxy == null) {
+            return 0;
+        } else {
+            return clockToVirtualTime(creatureClock(proxy) - proxy.turnStartClock);
+        }
+    }
+
+
+    /** getTime(), for a creature's own code.  The game time includes
+        the turns of the creatures ahead of e in a parallel batch, so
+        this waits for them. */
+    public long getGameTime(Creature e) {
+        awaitCommit(e);
+        return getTime();
+    }
+
+
+    /** Returns the time in virtual nanoseconds since the current creature's
+        current turn started. Updated continuously.*/
+    public long getTurnTime() {
+        final long now;
+        if (runningProxy != null) {
+            now = creatureClock(runningProxy);
+        } else if (metering) {
+            final InstructionMeter.Meter m = InstructionMeter.current();
+            now = (m == null) ? currentTurnThreadStartTime : m.instructions * INSTRUCTION_TIME;
+        } else {
+            assert Thread.currentThread() != simThread;
+            now = getThreadUserTime(Thread.currentThread());
+        }
+        return clockToVirtualTime(now - currentTurnThreadStartTime);
+    }
+
+
+    /**
+       Returns a description of the final outcome, or null if the game has not yet ended.
+       
+       A creature has won if:
+       <ul>
+         <li> It is the only species other than Flytraps and Apples remaining, OR
+         <li> Time has elapsed and it has more instances than any other Creature
+         and there are no Treasures on the map.
+       </ul>
+     */
+    public Result getResult() {
+        // The simulation thread calls this before every turn, so
+        // only take the lock and build the Result once the counters
+        // say that the game is over.
+        if ((finalResult == null) && isGameOver()) {
+            synchronized (performanceLock) {
+                if (finalResult == null) {
+                    finalResult = makeResult();
                 }
+            }
+        }
 
-                return new Result("Total Loss", null, 
-                                  "because there are no active Creatures", null, t,
-                                  speciesTable);
+        return finalResult;
+    }
+
+
+    /** Fast, unsynchronized test of the conditions in makeResult.
+        Never false when makeResult would return a Result; may rarely
+        be true when it would not, if called from a thread other than
+        the simulation thread. */
+    private boolean isGameOver() {
+        final int numSpecies = getNumCompetingSpecies();
+        if ((numSpecies == 0) || turnQueue.isEmpty()) {
+            return true;
+        }
+
+        switch (gameMode) {
+        case MAZE:
+            return (numSpecies == 1) && (treasureSpecies.population == 0);
+
+        case NATURAL_SELECTION:
+            return (ascendedSpecies != null) ||
+                ((numSpecies <= numCompetitors / 2) && (treasureSpecies.population == 0)) ||
+                (totalElapsedTime >= TIME_LIMIT) || steadyState;
+        }
+
+        return false;
+    }
+
+
+    /** Called from getResult while holding the performanceLock.
+        Sets the Species.resultCodes and returns the Result, or
+        returns null if the game has not ended. */
+    private Result makeResult() {
+        final int numTreasures = treasureSpecies.population;
+        final int numSpecies   = getNumCompetingSpecies();
+        
+        final long t = getTime();
+        
+        if ((numSpecies == 0) || (turnQueue.size() == 0)) {
+            // Everyone lost
+            
+            for (Species species : speciesTable.values()) {
+                species.resultCode = Result.Code.LOSE;
             }
 
-            switch (gameMode) {
-            case MAZE:
-                if ((numSpecies == 1) && (numTreasures == 0)) {
-                    // Find the winner
-                    Class winner = getMostPopulousSpecies(1)[0];
-                    assert winner != null;
-                    speciesTable.get(winner).resultCode = Result.Code.DOMINATION;
-                    return new Result(shortName(winner.getName()) + " completed", winner, "the maze", 
-                                      getImage(winner, Direction.EAST), t, speciesTable);
-                }
-                break;
+            return new Result("Total Loss", null, 
+                              "because there are no active Creatures", null, t,
+                              speciesTable);
+        }
 
-            case NATURAL_SELECTION:
-                // See if any species won by ascension
-                for (Species winner : speciesTable.values()) {
+        switch (gameMode) {
+        case MAZE:
+            if ((numSpecies == 1) && (numTreasures == 0)) {
+                // Find the winner
+                Class winner = getMostPopulousSpecies(1)[0];
+                assert winner != null;
+                speciesTable.get(winner).resultCode = Result.Code.DOMINATION;
+                return new Result(shortName(winner.getName()) + " completed", winner, "the maze", 
+                                  getImage(winner, Direction.EAST), t, speciesTable);
+            }
+            break;
+
+        case NATURAL_SELECTION:
+            // See if any species won by ascension
+            if (ascendedSpecies != null) {
+                final Species winner = ascendedSpecies;
                     
-                    if (winner.ascensions >= NS_ASCENSIONS_TO_WIN) {
-                        
-                        winner.resultCode = Result.Code.ASCENSION;
-                        for (Species species : speciesTable.values()) {
-                            if (species != winner) {
-                                species.resultCode = Result.Code.LOSE;
-                            }
-                        }
-                        
-                        return new Result(shortName(winner.creatureClass.getName()) + " wins", winner.creatureClass, "by ascension",
-                                          getImage(winner.creatureClass, Direction.EAST), t, speciesTable);
+                winner.resultCode = Result.Code.ASCENSION;
+                for (Species species : speciesTable.values()) {
+                    if (species != winner) {
+                        species.resultCode = Result.Code.LOSE;
                     }
                 }
-                
-            
-                if ((numSpecies <= numCompetitors / 2) && (numTreasures == 0)) {
-                    // Total domination
                     
-                    for (Species species : speciesTable.values()) {
-                        species.resultCode = Result.Code.LOSE;
-                    }
+                return new Result(shortName(winner.creatureClass.getName()) + " wins", winner.creatureClass, "by ascension",
+                                  getImage(winner.creatureClass, Direction.EAST), t, speciesTable);
+            }
+            
+        
+            if ((numSpecies <= numCompetitors / 2) && (numTreasures == 0)) {
+                // Total domination
+                
+                for (Species species : speciesTable.values()) {
+                    species.resultCode = Result.Code.LOSE;
+                }
 
-                    // Find the winner
-                    Class[] winners = getMostPopulousSpecies(numCompetitors / 2);
-                    for (int i = 0; i < winners.length; ++i) {
-                        speciesTable.get(winners[i]).resultCode = Result.Code.DOMINATION;
-                    }
-                    return new Result(toWinnerString(winners), winners[0], "by total domination", 
-                                      getImage(winners[0], Direction.EAST), t, 
-                                      speciesTable);
+                // Find the winner
+                Class[] winners = getMostPopulousSpecies(numCompetitors / 2);
+                for (int i = 0; i < winners.length; ++i) {
+                    speciesTable.get(winners[i]).resultCode = Result.Code.DOMINATION;
                 }
-                
-                if ((t >= TIME_LIMIT) ||
-                    (turnQueue.size() == 0)) {
+                return new Result(toWinnerString(winners), winners[0], "by total domination", 
+                                  getImage(winners[0], Direction.EAST), t, 
+                                  speciesTable);
+            }
+            
+            if ((t >= TIME_LIMIT) ||
+                (turnQueue.size() == 0) ||
+                steadyState) {
 
-                    Class[] majority = getMostPopulousSpecies(numCompetitors / 2);
-                    for (int i = 0; i < majority.length; ++i) {
-                        speciesTable.get(majority[i]).resultCode = Result.Code.MAJORITY;
-                    }
+                Class[] majority = getMostPopulousSpecies(numCompetitors / 2);
+                for (int i = 0; i < majority.length; ++i) {
+                    speciesTable.get(majority[i]).resultCode = Result.Code.MAJORITY;
+                }
 
-                    for (Species species : speciesTable.values()) {
-                        if (species.resultCode != Result.Code.MAJORITY) {
-                            if (getCreatureCount(species.creatureClass) > 0) {
-                                species.resultCode = Result.Code.SURVIVAL;
-                            } else {
-                                species.resultCode = Result.Code.LOSE;
-                            }
+                for (Species species : speciesTable.values()) {
+                    if (species.resultCode != Result.Code.MAJORITY) {
+                        if (species.population > 0) {
+                            species.resultCode = Result.Code.SURVIVAL;
+                        } else {
+                            species.resultCode = Result.Code.LOSE;
                         }
                     }
-
-                    return new Result(toWinnerString(majority), majority[0], 
-                                          "by population majority at time limit", 
-                                          getImage(majority[0], Direction.EAST), t, speciesTable);
                 }
-                break;
+
+                return new Result(toWinnerString(majority), majority[0], 
+                                      "by population majority at time limit", 
+                                      getImage(majority[0], Direction.EAST), t, speciesTable);
             }
-        } // synchronized (performanceLock)
+            break;
+        }
 
         return null;
     }
@@ -1449,14 +3175,15 @@ public final class Simulator implements javax.swing.Icon {
                 title = mapFilename;
             }
             System.out.println("Loading map " + title);
-            
-            map = new Entity[width][height];
-            environment = new Environment[width][height];
-            for (int x = 0; x < width; ++x) {
-                for (int y = 0; y < height; ++y) {
-                    environment[x][y] = new Environment();
-                }
+
+            if ((width > MAX_MAP_SIZE) || (height > MAX_MAP_SIZE)) {
+                System.err.println("Error: " + mapFilename + " is " + width + " x " + height +
+                                   "; maps may be at most " + MAX_MAP_SIZE + " squares on a side.");
+                System.exit(-1);
             }
+            
+            map = new EntityGrid(width, height);
+            environment = new Environment(width, height, defaultMaxPheromones, defaultMaxPheromoneBytes);
 
             parse(reader, creatures);
 
@@ -1474,10 +3201,11 @@ public final class Simulator implements javax.swing.Icon {
 
     /** If location (x, y) is not a wall, make it one */
     private void forceWall(int x, int y) {
-        if ((map[x][y] == null) || 
-            ((map[x][y].getType() != Type.WALL) &&
-             (map[x][y].getType() != Type.HAZARD))) {
-            map[x][y] = StaticEntity.wall;
+        final Entity e = map.get(x, y);
+        if ((e == null) || 
+            ((e.getType() != Type.WALL) &&
+             (e.getType() != Type.HAZARD))) {
+            map.set(x, y, StaticEntity.wall);
         }
     }
 
@@ -1493,6 +3221,7 @@ public final class Simulator implements javax.swing.Icon {
             reader.reset();
             readToEndOfLine(reader);
 
+            initialSpawns = new ArrayList<Proxy>();
             for (int y = 0; y < height; ++y) {
                 readMapLine(reader, creatures, y, rnd);
             }
@@ -1502,6 +3231,8 @@ public final class Simulator implements javax.swing.Icon {
             // Done!
         }
 
+        awaitInitialSpawns();
+
         // Force walls around the outside
         for (int x = 0; x < width; ++x) {
             forceWall(x, 0);
@@ -1515,13 +3246,31 @@ public final class Simulator implements javax.swing.Icon {
     }
 
 
+    /** Called from parse.  Every creature on the map was started
+        without waiting for it to reach its first endTurn, so that
+        their threads come up together instead of one at a time.
+        Wait for each of them now, in map order, which enqueues them
+        in turnQueue exactly as if each spawn had waited itself. */
+    private void awaitInitialSpawns() {
+        final ArrayList<Proxy> list = initialSpawns;
+        initialSpawns = null;
+
+        spawning = true;
+        for (Proxy proxy : list) {
+            if (isAlive(proxy.creature)) {
+                oneTurn(proxy);
+            }
+        }
+        spawning = false;
+    }
+
+
     /** Called from loadMap to assign classIds to all shrines. */
     private void assignShrineClassIds() {
         for (int x = 0; x < width; ++x) {
             for (int y = 0; y < height; ++y) {
-                Environment e = environment[x][y];
-                if (e.shrineClassId == Environment.TO_BE_DETERMINED) {
-                    e.shrineClassId = findClosestSpawnClassId(x, y);
+                if (environment.shrineClassId(x, y) == Environment.TO_BE_DETERMINED) {
+                    environment.setShrineClassId(x, y, findClosestSpawnClassId(x, y));
                 }
             }
         }
@@ -1530,26 +3279,36 @@ public final class Simulator implements javax.swing.Icon {
 
     private int square(int x) { return x * x; }
 
-    /** Finds the classId of the spawn point nearest to (x, y) */
+    /** Finds the classId of the spawn point nearest to (x, y).
+        Called while loading, when every creature is still on its
+        spawn point, so only the creatures need to be searched rather
+        than the whole map.  Ties go to the smallest x, then the
+        smallest y. */
     private int findClosestSpawnClassId(int x0, int y0) {
-        int distance = 100000000;
+        int distance = Integer.MAX_VALUE;
+        int bestX = 0, bestY = 0;
 
         int classId = Creature.UNINITIALIZED_CLASS_ID;
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                Entity e = map[x][y];
+        for (int i = 0; i < numSlots; ++i) {
+            final Proxy proxy = slotTable[i];
+            if ((proxy == null) || proxy.dead) {
+                continue;
+            }
 
-                if ((e != null) && (e.getType() == Type.CREATURE) &&
-                    (e.getClassId() != Creature.APPLE_CLASS_ID) &&
-                    (e.getClassId() != Creature.TREASURE_CLASS_ID) &&
-                    (e.getClassId() != Creature.FLYTRAP_CLASS_ID)) {
-                    
+            final Creature e = proxy.creature;
+            if ((e.getClassId() != Creature.APPLE_CLASS_ID) &&
+                (e.getClassId() != Creature.TREASURE_CLASS_ID) &&
+                (e.getClassId() != Creature.FLYTRAP_CLASS_ID)) {
                     
-                    int d = square(x0 - x) + square(y0 - y);
-                    if (d < distance) {
-                        distance = d;
-                        classId = e.getClassId();
-                    }
+                final int x = xOf(proxy.location);
+                final int y = yOf(proxy.location);
+                final int d = square(x0 - x) + square(y0 - y);
+                if ((d < distance) ||
+                    ((d == distance) && ((x < bestX) || ((x == bestX) && (y < bestY))))) {
+                    distance = d;
+                    bestX = x;
+                    bestY = y;
+                    classId = e.getClassId();
                 }
             }
         }
@@ -1581,26 +3340,26 @@ public final class Simulator implements javax.swing.Icon {
                 break;
             } else if ((c == 'X') || (c == 'x')) {
                 // Wall
-                map[x][y] = StaticEntity.wall;
+                map.set(x, y, StaticEntity.wall);
             } else if (c == '#') {
                 // Alternative color wall 2
-                map[x][y] = StaticEntity.wall2;
+                map.set(x, y, StaticEntity.wall2);
             } else if (c == '%') {
                 // Alternative color wall 3
-                map[x][y] = StaticEntity.wall3;
+                map.set(x, y, StaticEntity.wall3);
             } else if ((c == '+') || (c == 'T')) {
                 // Thorn
-                map[x][y] = StaticEntity.thorn;
+                map.set(x, y, StaticEntity.thorn);
             } else if ((c == 'a') || (c == 'A') || (c == 'e') || (c == 'E')) {
                 // Apple
-                spawn(Apple.class, new Point(x, y), Direction.EAST, (c == 'E') || (c == 'e'), t);
+                spawn(Apple.class, pack(x, y), Direction.EAST, (c == 'E') || (c == 'e'), t);
             } else if (c == '*') {
                 // Treasure
-                spawn(Treasure.class, new Point(x, y), Direction.EAST, false, t);
+                spawn(Treasure.class, pack(x, y), Direction.EAST, false, t);
                 gameMode = GameMode.MAZE;
             } else if ((c == 'f') || (c == 'F')) {
                 // Flytrap
-                spawn(Flytrap.class, new Point(x, y), directionHash(x, y), false, t);
+                spawn(Flytrap.class, pack(x, y), directionHash(x, y), false, t);
             } else if (Character.isDigit(c)) {
                 // Creature
                 final int i = c - '0';
@@ -1620,7 +3379,7 @@ public final class Simulator implements javax.swing.Icon {
                             speciesTable.put(creatureClass, s);
                         }
 
-                        spawn(creatureClass, new Point(x, y), directionHash(x, y), false, t);
+                        spawn(creatureClass, pack(x, y), directionHash(x, y), false, t);
                     } else {
                         System.err.println("Warning: creature #" + i + " could not be instantiated.");
                     }
@@ -1641,11 +3400,12 @@ public final class Simulator implements javax.swing.Icon {
 
                 if ((c == ':') || (c == 'F') || (c == 'A') || (c == 'T') || (c == 'E')) {
                     // Fogged square
-                    environment[x][y].inFog = true;
+                    environment.setFog(x, y);
                 } else if (c == '.') {
-                    environment[x][y].inMud = true;
+                    environment.setMud(x, y);
                 } else if ((c == 's') || (c == 'S')) {
-                    environment[x][y].shrineClassId = Environment.TO_BE_DETERMINED;
+                    environment.setShrineClassId(x, y, Environment.TO_BE_DETERMINED);
+                    map.freeCells.setReserved(x, y, true);
                 } // Environment
 
             } // Type
@@ -1685,58 +3445,545 @@ public final class Simulator implements javax.swing.Icon {
             throw new IllegalArgumentException("Simulation already in progress.");
         }
 
-        competitorCreatureClasses = creatures;
+        competitorCreatureClasses = creatures;
+
+        // We need to be holding the performance lock to avoid a
+        // deadlock where the swing thread grabs the performanceLock
+        // and this thread grabs the lock on this. 
+
+        synchronized (performanceLock) {
+            synchronized (this) {
+                assert creatures != null;
+                slotTable = new Proxy[slotTable.length];
+                numSlots = 0;
+                numFreeSlots = 0;
+                setIntraTurnTime(PAUSE_TIME);
+                numSpeciesPresent = 0;
+                ascendedSpecies = null;
+                steadyStateWindow = defaultSteadyStateWindow;
+                numPopulationChanges = 0;
+                lastChangeTime = 0;
+                checkedPopulationChanges = -1;
+                checkedQueueSize = -1;
+                steadyState = false;
+                finalResult = null;
+                turnQueue = (defaultSchedulerMode == SchedulerMode.CALENDAR_QUEUE) ?
+                    new TurnScheduler.CalendarQueue<Proxy>() :
+                    new TurnScheduler.IndexedHeap<Proxy>();
+                spawnQueue.clear();
+                deathQueue.clear();
+                selectedCreature = null;
+                creatureThreadGroup = new ThreadGroup("Creatures");
+                if (creatureThreadPool != null) {
+                    creatureThreadPool.close();
+                }
+                creatureThreadPool = new CreatureThreadPool(creatureThreadGroup);
+                executionMode = defaultExecutionMode;
+                intrinsicsEnabled = defaultIntrinsicsEnabled;
+                maxParallelTurns = defaultMaxParallelTurns;
+                if ((maxParallelTurns > 1) && (executionMode != ExecutionMode.PLATFORM_THREADS)) {
+                    System.err.println("Warning: parallel turns require platform threads; " +
+                                       "taking one turn at a time.");
+                    maxParallelTurns = 1;
+                }
+                lockstep = defaultLockstep;
+                if (lockstep && (executionMode != ExecutionMode.PLATFORM_THREADS)) {
+                    System.err.println("Warning: lockstep turns require platform threads; " +
+                                       "taking turns in time order.");
+                    lockstep = false;
+                }
+                metering = defaultMetering;
+                if (metering && ! canMeter(creatures)) {
+                    metering = false;
+                }
+                if (! metering && (executionMode != ExecutionMode.PLATFORM_THREADS)) {
+                    System.err.println("Warning: " + executionMode + " requires metering to enforce KILL_TIME; " +
+                                       "using platform threads.");
+                    executionMode = ExecutionMode.PLATFORM_THREADS;
+                }
+                if (watchdog != null) {
+                    watchdog.interrupt();
+                    watchdog = null;
+                }
+                if (executionMode == ExecutionMode.SINGLE_THREADED) {
+                    watchdog = new Watchdog();
+                    watchdog.start();
+                }
+                
+                totalElapsedTime = 0;
+                
+                prepareClassIds();
+                loadMap(mapfile, creatures);
+                live = true;
+                
+                simThread = new InstructionMeter.MeteredThread(new Runnable() {
+                        public void run() {
+                            // stop() cannot force this thread to end on
+                            // JVMs without Thread.stop, so also check live
+                            while (live && (getResult() == null)) {
+                                if (lockstep) {
+                                    oneTick();
+                                } else if (maxParallelTurns > 1) {
+                                    oneBatch();
+                                } else {
+                                    oneTurn();
+                                    afterTurn();
+                                }
+                            }
+                            stop();
+                        }}, "Simulation thread");
+            
+                simThread.start();
+            }
+        }
+    }
+
+    
+    /** Called from start.  True if a metered match can be played
+        with these creatures: every class was loaded with metering.
+        Otherwise prints a warning and returns false. */
+    private boolean canMeter(Class[] creatures) {
+        for (Class c : creatures) {
+            if ((c != null) && (c != Apple.class) && (c != Flytrap.class) && (c != Treasure.class) &&
+                ! Sandbox.isMetered(c)) {
+                System.err.println("Warning: " + c.getName() + " was loaded before metering was enabled; " +
+                                   "timing creatures by the clock.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    
+    /** End simulation, without destroying final state. */
+    synchronized public void stop() {
+        // Pause play
+        setIntraTurnTime(PAUSE_TIME);
+        live = false;
+
+        // End the simulation.  The simulation thread calls this
+        // itself when the game ends, and then returns on its own.
+        if (simThread != Thread.currentThread()) {
+            stopThread(simThread);
+        }
+        if (watchdog != null) {
+            watchdog.interrupt();
+        }
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+            final Proxy[] table = slotTable;
+            for (int i = 0; i < numSlots; ++i) {
+                if (table[i] != null) {
+                    table[i].meter.exhaust();
+                    stopThread(table[i].thread);
+                }
+            }
+        }
+        if (creatureThreadPool != null) {
+            creatureThreadPool.close();
+        }
+        stopThreadGroup(creatureThreadGroup);
+        simThread = null;
+    }
+
+
+    /** Waits for the simulation thread to end, which it does after
+        the turn that produces a result or when stop() is called. */
+    public void join() throws InterruptedException {
+        final Thread t = simThread;
+        if ((t != null) && (t != Thread.currentThread())) {
+            t.join();
+        }
+    }
+
+
+    /** Called by the simulation thread after each turn. */
+    private void afterTurn() {
+        // Must process deaths first to clear map squares
+        processDeathQueue();
+        processSpawnQueue();
+        detectSteadyState();
+        waitBetweenTurns();
+    }
+
+
+    /** Takes the turns of a batch of creatures from the front of the
+        turnQueue (see formBatch).  Every creature in the batch with
+        a thread is woken at once, so that their computation overlaps;
+        then their turns are finished one at a time in queue order,
+        each exactly as oneTurn would.  A creature's actions wait in
+        awaitCommit until the creatures ahead of it are done, so each
+        sees the world that it would have without parallelism.  Used
+        instead of oneTurn when maxParallelTurns > 1. */
+    private void oneBatch() {
+        if (turnQueue.isEmpty()) {
+            // There's nothing to do
+            Thread.yield();
+            return;
+        }
+
+        formBatch();
+
+        // Start every threaded creature thinking.  Each one is gated
+        // until its place in the batch comes up, even the first, so
+        // that none is rescheduled while the queue is being read.
+        for (Proxy proxy : batch) {
+            if (proxy.thread != null) {
+                proxy.gated = true;
+                startTurnClock(proxy);
+                proxy.beginTurn();
+            }
+        }
+
+        for (Proxy proxy : batch) {
+            if (! live || (getResult() != null)) {
+                // The rest are gated, and stopped with the game
+                break;
+            }
+
+            // Only a creature's own turn can kill it
+            assert isAlive(proxy.creature);
+
+            // Nothing can be due sooner, except an Apple that a turn
+            // left behind, whose first turn only ends it
+            assert (turnQueue.peek().getScheduledTime() == proxy.getScheduledTime()) ||
+                (turnQueue.peek().creature.getClassId() == Creature.APPLE_CLASS_ID) :
+            "Parallel batch out of order";
+
+            if (proxy.thread == null) {
+                proxy.beginTurn();
+                oneTurn(proxy, false);
+            } else {
+                proxy.gated = false;
+                LockSupport.unpark(proxy.thread);
+                oneTurn(proxy, true);
+            }
+            afterTurn();
+        }
+
+        batch.clear();
+    }
+
+
+    /** Called from oneBatch.  Moves the longest run of creatures at
+        the front of the turnQueue that can take their turns together
+        into batch, up to maxParallelTurns.  The run ends at the first
+        creature that
+
+        <ul>
+          <li> is due DELAY_COST or more after the first.  Every
+               action costs at least that much, and a creature
+               created by an attack first acts DELAY_COST after its
+               attacker, so no other creature can act in between.
+          <li> is of the same species as one in the batch, which
+               could share static state with it.
+          <li> is next to one in the batch, which could convert it
+               before it acts.
+          <li> is of a species with an onDeath method, one of whose
+               creatures is next to one in the batch.  Converting that
+               creature would run its onDeath, which must finish
+               before another of its species begins a turn.
+        </ul>
+
+        Since the batch is a prefix of the queue order, a creature's
+        turn never depends on one that comes after it.
+
+        <p>The members are taken off the queue to reach the ones behind
+        them and then restored, so the queue is unchanged.  Holding
+        the performanceLock meanwhile keeps getResult on other
+        threads from seeing an empty queue. */
+    private void formBatch() {
+        synchronized (performanceLock) {
+            formBatchLocked();
+        }
+    }
+
+
+    private void formBatchLocked() {
+        assert batch.isEmpty();
+        ++batchNumber;
+
+        final long end = turnQueue.peek().getScheduledTime() + DELAY_COST;
+        while (batch.size() < maxParallelTurns) {
+            final Proxy proxy = turnQueue.peek();
+            if ((proxy == null) ||
+                (! batch.isEmpty() &&
+                 ((proxy.getScheduledTime() >= end) ||
+                  (proxy.species.batchNumber == batchNumber) ||
+                  (proxy.species.exposedBatchNumber == batchNumber) ||
+                  nextToBatch(proxy)))) {
+                break;
+            }
+
+            turnQueue.remove(proxy);
+            batch.add(proxy);
+            proxy.batchNumber = batchNumber;
+            proxy.species.batchNumber = batchNumber;
+
+            for (Direction d : DIRECTIONS) {
+                final Proxy neighbor = neighbor(proxy, d);
+                if ((neighbor != null) && neighbor.species.overridesOnDeath) {
+                    neighbor.species.exposedBatchNumber = batchNumber;
+                }
+            }
+        }
+
+        // Put them back where they were.  Each one leaves the front
+        // of the queue in turn as oneTurn reschedules it.
+        for (Proxy proxy : batch) {
+            turnQueue.restore(proxy);
+        }
+    }
+
+
+    /** True if a creature in the current batch is next to proxy. */
+    private boolean nextToBatch(Proxy proxy) {
+        for (Direction d : DIRECTIONS) {
+            final Proxy neighbor = neighbor(proxy, d);
+            if ((neighbor != null) && (neighbor.batchNumber == batchNumber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** The creature next to proxy in direction d, or null. */
+    private Proxy neighbor(Proxy proxy, Direction d) {
+        final int x = xOf(proxy.location) + d.dx();
+        final int y = yOf(proxy.location) + d.dy();
+        if (inBounds(x, y)) {
+            final Entity e = map.get(x, y);
+            if (e instanceof Creature) {
+                return getProxy((Creature)e);
+            }
+        }
+        return null;
+    }
+
+
+    /** Orders Proxys by creature ID. */
+    static private final Comparator<Proxy> ID_ORDER = new Comparator<Proxy>() {
+            public int compare(Proxy a, Proxy b) {
+                final int i = a.creature.getId();
+                final int j = b.creature.getId();
+                return (i < j) ? -1 : ((i == j) ? 0 : 1);
+            }};
+
+
+    /** Takes one lockstep tick (see setLockstep), in which every
+        creature in the turnQueue takes one turn.  First they all
+        choose their actions against the same world: creatures with
+        threads are woken at once and gated, and each reports its
+        action from awaitCommit and waits there; the rest are chosen
+        by declareAction.  Then resolveConflicts vetoes the actions
+        that conflict, and the turns are finished one at a time, each
+        exactly as oneTurn would, in the order that setLockstep
+        describes.  Used instead of oneTurn when lockstep is set. */
+    private void oneTick() {
+        if (turnQueue.isEmpty()) {
+            // There's nothing to do
+            Thread.yield();
+            return;
+        }
+
+        assert batch.isEmpty();
+        for (int i = 0; i < numSlots; ++i) {
+            final Proxy proxy = slotTable[i];
+            if ((proxy != null) && turnQueue.contains(proxy)) {
+                proxy.declaredAction = null;
+                proxy.vetoed   = false;
+                proxy.resolved = false;
+                batch.add(proxy);
+            }
+        }
+        Collections.sort(batch, ID_ORDER);
+
+        // Choose.  Nothing changes the world until every creature
+        // has chosen.
+        for (Proxy proxy : batch) {
+            if ((proxy.thread != null) && (proxy.plan == null)) {
+                proxy.gated = true;
+                startTurnClock(proxy);
+            }
+            proxy.beginTurn();
+        }
+
+        for (Proxy proxy : batch) {
+            if (proxy.gated) {
+                awaitDeclaredAction(proxy);
+            } else {
+                proxy.declareAction();
+            }
+        }
+
+        resolveConflicts();
+
+        // Act
+        for (Proxy proxy : batch) {
+            if (proxy.declaredAction == StepCreature.Action.ATTACK) {
+                resolve(proxy);
+            }
+        }
+
+        for (Proxy proxy : batch) {
+            if (isMove(proxy.declaredAction)) {
+                resolveMove(proxy);
+            }
+        }
+
+        for (Proxy proxy : batch) {
+            if (! proxy.resolved) {
+                resolve(proxy);
+            }
+        }
+
+        // If the game ended, the creatures that did not act are
+        // still gated, and are stopped with it
+        batch.clear();
+    }
+
+
+    /** Called from oneTick.  Waits until proxy's thread chooses its
+        action, ends its turn without one, or exceeds KILL_TIME.  A
+        creature that is still thinking is timed out, as usual, when
+        the simulator takes its turn. */
+    private void awaitDeclaredAction(Proxy proxy) {
+        final long deadline = System.nanoTime() + (metering ? METERED_WALL_LIMIT : virtualCPUToRealCPUTime(KILL_TIME));
+        while ((proxy.declaredAction == null) && proxy.hasTurn && ! proxy.isTerminated() && live) {
+            final long timeLeft = deadline - System.nanoTime();
+            if ((timeLeft <= 0) ||
+                (metering && (creatureClock(proxy) - proxy.turnStartClock >= KILL_TIME))) {
+                return;
+            }
+            LockSupport.parkNanos(this, metering ? Math.min(timeLeft, METERED_POLL_TIME) : timeLeft);
+        }
+    }
+
+
+    /** How often a metered creature's instruction count is checked
+        while it holds its turn. */
+    final static private long METERED_POLL_TIME = MILLISECONDS;
+
+    /** Called from oneTurn under metering.  As proxy.awaitEndOfTurn,
+        but the limit is KILL_TIME worth of instructions, or
+        METERED_WALL_LIMIT since wallClockStart for a creature that
+        holds its turn without executing instructions. */
+    private boolean awaitMeteredEndOfTurn(Proxy proxy, long wallClockStart) throws InterruptedException {
+        while (! proxy.awaitEndOfTurn(METERED_POLL_TIME)) {
+            if ((creatureClock(proxy) - proxy.turnStartClock >= KILL_TIME) ||
+                (System.nanoTime() - wallClockStart >= METERED_WALL_LIMIT)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /** Vetoes the actions of the current lockstep tick that conflict;
+        see setLockstep. */
+    private void resolveConflicts() {
+        // Attacks on each other
+        for (Proxy proxy : batch) {
+            if (proxy.declaredAction == StepCreature.Action.ATTACK) {
+                final Proxy target = neighbor(proxy, proxy.direction);
+                if ((target != null) &&
+                    (target.declaredAction == StepCreature.Action.ATTACK) &&
+                    (neighbor(target, target.direction) == proxy)) {
+                    proxy.vetoed = true;
+                }
+            }
+        }
+
+        // Attacks on and moves into the same square
+        final HashMap<Integer, Proxy> attacked = new HashMap<Integer, Proxy>();
+        final HashMap<Integer, Proxy> entered  = new HashMap<Integer, Proxy>();
+        for (Proxy proxy : batch) {
+            if (proxy.vetoed) {
+                continue;
+            }
+
+            if (proxy.declaredAction == StepCreature.Action.ATTACK) {
+                final int square = targetOf(proxy, +1);
+                if (square != -1) {
+                    if (attacked.containsKey(square)) {
+                        proxy.vetoed = true;
+                    } else {
+                        attacked.put(square, proxy);
+                    }
+                }
+            } else if (isMove(proxy.declaredAction)) {
+                final int square = targetOf(proxy, (proxy.declaredAction == StepCreature.Action.MOVE_FORWARD) ? +1 : -1);
+                if (square != -1) {
+                    final Proxy other = entered.put(square, proxy);
+                    if (other != null) {
+                        other.vetoed = true;
+                        proxy.vetoed = true;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** Finishes the lockstep turn of a creature that chose to move.
+        If the square that it is moving into holds another creature
+        that is moving, finishes that one's turn first, and so on
+        down the line. */
+    private void resolveMove(Proxy proxy) {
+        final ArrayList<Proxy> line = new ArrayList<Proxy>();
+        while ((proxy != null) && ! proxy.resolved && ! proxy.vetoed && isMove(proxy.declaredAction)) {
+            proxy.resolved = true;
+            line.add(proxy);
+
+            final int square = targetOf(proxy, (proxy.declaredAction == StepCreature.Action.MOVE_FORWARD) ? +1 : -1);
+            final Entity e = (square == -1) ? null : map.get(square);
+            proxy = (e instanceof Creature) ? getProxy((Creature)e) : null;
+        }
+
+        // The one at the front goes first
+        for (int i = line.size() - 1; i >= 0; --i) {
+            takeResolvedTurn(line.get(i));
+        }
+    }
+
+
+    /** Finishes the lockstep turn of proxy. */
+    private void resolve(Proxy proxy) {
+        if (! proxy.resolved) {
+            proxy.resolved = true;
+            takeResolvedTurn(proxy);
+        }
+    }
+
 
-        // We need to be holding the performance lock to avoid a
-        // deadlock where the swing thread grabs the performanceLock
-        // and this thread grabs the lock on this. 
+    private void takeResolvedTurn(Proxy proxy) {
+        if (! live || (getResult() != null) || ! isAlive(proxy.creature)) {
+            // The game is over, or the creature was converted
+            // earlier in the tick
+            return;
+        }
 
-        synchronized (performanceLock) {
-            synchronized (this) {
-                assert creatures != null;
-                proxyTable.clear();
-                intraTurnTime = PAUSE_TIME;
-                creatureCount.clear();
-                turnQueue.clear();
-                spawnQueue.clear();
-                deathQueue.clear();
-                selectedCreature = null;
-                creatureThreadGroup = new ThreadGroup("Creatures");
-                
-                totalElapsedTime = 0;
-                
-                prepareClassIds();
-                loadMap(mapfile, creatures);
-                live = true;
-                
-                simThread = new Thread(new Runnable() {
-                        public void run() {
-                            while (getResult() == null) {
-                                oneTurn();
-                                // Must process deaths first to clear map squares
-                                processDeathQueue();
-                                processSpawnQueue();
-                                waitBetweenTurns();
-                            }
-                            stop();
-                        }}, "Simulation thread");
-            
-                simThread.start();
-            }
+        if (proxy.gated) {
+            proxy.gated = false;
+            LockSupport.unpark(proxy.thread);
+            oneTurn(proxy, true);
+        } else {
+            oneTurn(proxy, false);
         }
+        afterTurn();
     }
 
-    
-    /** End simulation, without destroying final state. */
-    synchronized public void stop() {
-        // Pause play
-        setIntraTurnTime(PAUSE_TIME);
-        live = false;
 
-        // End the simulation
-        stopThread(simThread);
-        stopThreadGroup(creatureThreadGroup);
-        simThread = null;
+    static private boolean isMove(StepCreature.Action action) {
+        return (action == StepCreature.Action.MOVE_FORWARD) || (action == StepCreature.Action.MOVE_BACKWARD);
+    }
+
+
+    /** The square distance steps in front of proxy, or -1 if out of bounds. */
+    private int targetOf(Proxy proxy, int distance) {
+        final int x = xOf(proxy.location) + proxy.direction.dx() * distance;
+        final int y = yOf(proxy.location) + proxy.direction.dy() * distance;
+        return inBounds(x, y) ? pack(x, y) : -1;
     }
 
 
@@ -1752,14 +3999,22 @@ public final class Simulator implements javax.swing.Icon {
         final Proxy proxy = turnQueue.peek();
         assert isAlive(proxy.creature); 
         
+        // Under metering, read the clock before the creature's thread
+        // can run, so that the charge does not depend on how soon
+        // this thread gets to it
+        final boolean clockStarted = metering && (proxy.thread != null);
+        if (clockStarted) {
+            startTurnClock(proxy);
+        }
+
         // Wake up the creature's thread. (It conveniently waits on its
         // own proxy; a Creature CANNOT wait on itself, since that is
         // visible to players.)
-        synchronized (proxy) { proxy.notify(); }
+        proxy.beginTurn();
 
         // The creature might have died immediately after waking
         if (isAlive(proxy.creature)) {
-            oneTurn(proxy);
+            oneTurn(proxy, clockStarted);
         } else {
             // Make sure it was removed from the queue
             assert ! turnQueue.contains(proxy);
@@ -1783,10 +4038,17 @@ public final class Simulator implements javax.swing.Icon {
         the creature.
     */
     private void oneTurn(Proxy proxy) {
+        oneTurn(proxy, false);
+    }
+
+
+    /** If clockStarted, proxy.turnStartClock was already set when
+        the turn was handed to the creature. */
+    private void oneTurn(Proxy proxy, boolean clockStarted) {
         assert (spawning || ! Thread.holdsLock(this)) : 
         "Should not enter oneTurn while holding the simulator lock";
 
-        assert (spawning || (Thread.currentThread() == simThread)) :
+        assert (spawning || ! live || (Thread.currentThread() == simThread)) :
         ("Ran oneTurn on the wrong thread (" + Thread.currentThread() + ")");
 
         assert isAlive(proxy.creature): 
@@ -1800,13 +4062,12 @@ public final class Simulator implements javax.swing.Icon {
         // virtual CPU clock time taken for this creature's computation
         long elapsedTime;
 
-        // Run until the thread waits or runs out of time. We can't
-        // trust the creature to not crash or lock up, so we have to
-        // actively monitor it instead of using some kind of lock or
-        // wait() call.  We have to distinguish between waiting and
-        // timed waiting/blocked because if a thread is in a timed
-        // wait it could wake itself up.
-        Thread.State s;
+        // Sleep until the creature hands the turn back in endTurn(),
+        // its thread terminates, or it runs out of time.  We can't
+        // trust the creature to not crash or lock up, so the wait
+        // is bounded by KILL_TIME.
+        boolean timedOut = false;
+        boolean terminated;
 
         // We synchronize so that threads are not penalized for
         // blocking on the simulator mutex when the swing thread
@@ -1814,47 +4075,59 @@ public final class Simulator implements javax.swing.Icon {
         long elapsedWallTime = 0;
         synchronized (performanceLock) {
 
+            assert (proxy.thread == null) || (proxy.thread.getState() != Thread.State.NEW) :
+            "Creature thread reached oneTurn() without having been started.";
+
             final long wallClockStart = System.nanoTime();
-            currentTurnThreadStartTime = getThreadUserTime(proxy.thread);
+            if (! clockStarted) {
+                startTurnClock(proxy);
+            }
+            currentTurnThreadStartTime = proxy.turnStartClock;
 
-            do {
-                // The simulator thread is busy-waiting, so yield its quantum
-                Thread.yield();
-                try {
-                    nanoSleep(1000);
-                } catch (Exception e) {}
-                s = proxy.thread.getState();
-                
-                assert (s != Thread.State.NEW) : 
-                "Creature thread reached oneTurn() without having been started.";
-                
-                elapsedWallTime = realCPUToVirtualCPUTime(System.nanoTime() - wallClockStart);
-                
-            } while ((s != Thread.State.TERMINATED) && 
-                     (s != Thread.State.WAITING) && 
-                     (elapsedWallTime < KILL_TIME) &&
-                     isAlive(proxy.creature));
+            try {
+                if (metering) {
+                    timedOut = ! awaitMeteredEndOfTurn(proxy, wallClockStart);
+                } else {
+                    timedOut = ! proxy.awaitEndOfTurn(virtualCPUToRealCPUTime(KILL_TIME));
+                }
+            } catch (InterruptedException e) {
+                // The simulator is probably being shut down
+            }
+            terminated = proxy.isTerminated();
 
             // At this point, totalTimeSinceGameStart has been
             // incremented by the thread to account for an action
             // taken, if it invoked endTurn().
 
-            elapsedTime = realCPUToVirtualCPUTime(getThreadUserTime(proxy.thread) - currentTurnThreadStartTime);
+            elapsedTime = clockToVirtualTime(creatureClock(proxy) - proxy.turnStartClock);
+
+            if (metering) {
+                // Instructions stand in for wall-clock time, so that
+                // the kill is the same on every machine
+                elapsedWallTime = elapsedTime;
+            } else {
+                elapsedWallTime = realCPUToVirtualCPUTime(System.nanoTime() - wallClockStart);
+            }
+            if (timedOut) {
+                elapsedWallTime = Math.max(elapsedWallTime, KILL_TIME);
+            }
         }
 
         // Kill based on wall-clock time so that blocking (i.e.,
         // system time) still counts against a creature.
         if (elapsedWallTime >= KILL_TIME) {
-            System.err.println("\nA " + proxy.creature.getClassName() + 
-                               " who stopped responding after " + elapsedWallTime + 
+            System.err.println("\nA " + proxy.creature.getClassName() +
+                               " who stopped responding after " + elapsedWallTime +
                                " ns was turned into an Apple.");
-            if (s == Thread.State.BLOCKED) {
-                // Give the programmer some more information.
-                System.err.println("Its execution was blocked.");
-            }
-            System.err.println("Its stack trace was:");
-            for (java.lang.StackTraceElement st : proxy.thread.getStackTrace()) {
-                System.err.println(" at " + st);
+            if (proxy.thread != null) {
+                if (proxy.thread.getState() == Thread.State.BLOCKED) {
+                    // Give the programmer some more information.
+                    System.err.println("Its execution was blocked.");
+                }
+                System.err.println("Its stack trace was:");
+                for (java.lang.StackTraceElement st : proxy.thread.getStackTrace()) {
+                    System.err.println(" at " + st);
+                }
             }
             System.err.println();
 
@@ -1863,11 +4136,11 @@ public final class Simulator implements javax.swing.Icon {
                 killLater(proxy);
             }
 
-            spawnLater(Apple.class, proxy.position, Direction.random(), proxy.isEnchanted, proxy.totalTimeSinceGameStart);
+            spawnLater(Apple.class, proxy.location, Direction.random(), proxy.isEnchanted, proxy.totalTimeSinceGameStart);
 
         } else {
 
-            if (s == Thread.State.TERMINATED) {
+            if (terminated) {
                 // The process ended
                 elapsedTime = 0;
             }
@@ -1875,8 +4148,9 @@ public final class Simulator implements javax.swing.Icon {
             // Assume that the overhead of managing the threads takes
             // at least this much time, so don't count it against
             // creatures because it would make their percent
-            // computation times appear inflated.
-            final long OVERHEAD_TIME_NS = 40000;
+            // computation times appear inflated.  Metering counts
+            // only the creature's own instructions.
+            final long OVERHEAD_TIME_NS = metering ? 0 : 40000;
 
             // Assume that even doing nothing takes at least this much time
             final long MIN_TIME_NS      = 100;
@@ -1886,18 +4160,17 @@ public final class Simulator implements javax.swing.Icon {
 
             // Lock the simulator while we manipulate the queue
             synchronized (this) {
-                // Remove to update (or actually remove) the creature.
-                turnQueue.remove(proxy);
-
                 // Account for the compute cost of the turn in the proxy
                 proxy.addComputeTime(elapsedTime);
                 
-                // Don't bother putting back in the queue if
-                // terminated...the creature is still alive, but is
-                // not active; or if it actually is dead (due to walking
-                // into a thorn).
-                if ((s != Thread.State.TERMINATED) && isAlive(proxy.creature)) {
-                    turnQueue.add(proxy);
+                // Reposition the creature for its new time.  Don't
+                // bother keeping it in the queue if terminated...the
+                // creature is still alive, but is not active; or if it
+                // actually is dead (due to walking into a thorn).
+                if (! terminated && isAlive(proxy.creature)) {
+                    turnQueue.update(proxy);
+                } else {
+                    turnQueue.remove(proxy);
                 }
                 
                 // elapsedTime doesn't count the action time cost, so
@@ -1915,64 +4188,121 @@ public final class Simulator implements javax.swing.Icon {
 
         @see spawn */
     private Thread makeCreatureThread(final Proxy proxy, final Creature c, int id) {
-        return new Thread
-            (creatureThreadGroup,
-             new QuietRunnable() {
-                 public void runQuiet() {
-                     // Immediately end the first turn so that this
-                     // creature is waiting.  Without this, multiple
-                     // threads would be running at once and the user
-                     // code might experience deadlocks or race
-                     // conditions in Creature subclasses.
-                     proxy.endTurn(0);
-
-                     // Pass off to the creature's run method
-                     c.run();
-                 }},
-             c.getClassName() + "_" + id);
-    }
-
-    /** Wait the intraTurnTime in wall-clock time. If intraTurnTime is changed
-        while in delay, the new time will immediately be honored. */
-    // Cannot be synchronized because stop() needs to be called while
-    // this is running
-    private void waitBetweenTurns() {
-        try {
+        final String name = c.getClassName() + "_" + id;
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+            return VirtualThreads.newThread(makeCreatureRunnable(proxy, c), name);
+        } else {
+            return creatureThreadPool.allocate(proxy.species, name);
+        }
+    }
 
-            // Sleep in relatively small increments to ensure
-            // that the system is responsive to sleep time changes
-            // when it is paused or running slowly.
 
-            final long MILLISECONDS = 1000000;
+    /** Starts the thread made by makeCreatureThread. */
+    private void startCreatureThread(Proxy proxy) {
+        if (proxy.thread instanceof CreatureThread) {
+            proxy.threadJob = ((CreatureThread)proxy.thread).begin(makeCreatureRunnable(proxy, proxy.creature));
+        } else {
+            proxy.thread.start();
+        }
+    }
 
-            long timePassed = 0;
-            long timeLeft = getIntraTurnTime() - timePassed;
 
-            if (timeLeft < 0) {
-                // Integer wrap around must have occured
-                timeLeft = Long.MAX_VALUE;
-            }
+    /** The code executed by a creature's thread or continuation. */
+    private Runnable makeCreatureRunnable(final Proxy proxy, final Creature c) {
+        return new QuietRunnable() {
+            public void runQuiet() {
+                InstructionMeter.attach(proxy.meter);
+                try {
+                    // Immediately end the first turn so that this
+                    // creature is waiting.  Without this, multiple
+                    // threads would be running at once and the user
+                    // code might experience deadlocks or race
+                    // conditions in Creature subclasses.
+                    proxy.endTurn(0);
+
+                    // Pass off to the creature's run method
+                    c.run();
+                } finally {
+                    // Wake the simulator if it is waiting on this turn
+                    proxy.markTerminated();
+                }
+            }};
+    }
 
-            while (timeLeft > 0) {
-                // Never sleep more than 100 ms or less than 1 ns so
-                // as to be responsive to speed change buttons.
-                final long sleepTime = Math.min(Math.max(1, timeLeft), 100 * MILLISECONDS);
+    /** Paces the simulation to the speed set by setIntraTurnTime or
+        setSpeed.  Each turn adds the wall-clock time that it is
+        allowed to take.  While the simulation is less than a frame
+        ahead of that allowance this returns immediately, so turns
+        run in unthrottled batches; once it is a frame ahead, this
+        sleeps until the allowance catches up.  A speed change takes
+        effect within 100 ms, even when paused. */
+    // Cannot be synchronized because stop() needs to be called while
+    // this is running
+    private void waitBetweenTurns() {
+        if (paceChanged) {
+            restartPacing();
+        }
 
-                nanoSleep(sleepTime);
+        final long now = System.nanoTime();
+        paceAllowedTime = Math.min(paceAllowedTime + allowedTurnTime(), PAUSE_TIME);
+        long ahead = paceStartTime + paceAllowedTime - now;
 
-                timePassed += sleepTime;
-                
-                // We must update this every time around the loop because
-                // the delay time may have changed while we were sleeping.
-                timeLeft = getIntraTurnTime() - timePassed;
+        if (ahead < FRAME_TIME) {
+            if (ahead < -FRAME_TIME) {
+                // Turns are taking longer than the speed allows.
+                // Don't try to make up the difference in a burst.
+                restartPacing();
             }
+            return;
+        }
 
+        try {
+            // Sleep in increments of at most 100 ms so that the
+            // simulator is responsive to speed changes when it is
+            // paused or running slowly.
+            while ((ahead > 0) && ! paceChanged) {
+                Thread.sleep(Math.max(1, Math.min(ahead, 100 * MILLISECONDS) / MILLISECONDS));
+                ahead = paceStartTime + paceAllowedTime - System.nanoTime();
+            }
         } catch (InterruptedException e) {
             // System.err.println("Interupted during delay");
             // The simulator is probably being shut down
         }
     }
 
+
+    /** Called from waitBetweenTurns.  Pacing starts over from now. */
+    private void restartPacing() {
+        paceChanged     = false;
+        paceStartTime   = System.nanoTime();
+        paceAllowedTime = 0;
+        paceVirtualTime = turnQueue.isEmpty() ? 0 : turnQueue.peek().getScheduledTime();
+    }
+
+
+    /** Called from waitBetweenTurns.  Returns the wall-clock time
+        that the turn just taken is allowed. */
+    private long allowedTurnTime() {
+        final double s = speed;
+        if (Double.isNaN(s)) {
+            return intraTurnTime;
+        }
+
+        // How far the simulation's clock advanced during the turn
+        long dv = 0;
+        if (! turnQueue.isEmpty()) {
+            final long t = turnQueue.peek().getScheduledTime();
+            dv = Math.max(t - paceVirtualTime, 0);
+            paceVirtualTime = Math.max(t, paceVirtualTime);
+        }
+
+        if (s == 0) {
+            return PAUSE_TIME;
+        } else {
+            return (long)Math.min(dv / s, PAUSE_TIME);
+        }
+    }
+
     /** Has nanoSleep been tested? */
     static private boolean nanoTested = false;
 
@@ -2025,7 +4355,7 @@ public final class Simulator implements javax.swing.Icon {
         String s = title + " ("  + width + " x " + height + ")\n";
         for (int y = 0; y < height; ++y) {
             for (int x = 0; x < width; ++x) {
-                Entity e = map[x][y];
+                Entity e = map.get(x, y);
                 if (e == null) {
                     s += ' ';
                 } else {
@@ -2046,13 +4376,14 @@ public final class Simulator implements javax.swing.Icon {
     /** Called by a creature to turn */
     // DO NOT SYNCHRONIZE
     public void turnRight(Creature e) {
+        awaitCommit(e, StepCreature.Action.TURN_RIGHT);
         Proxy proxy;
         long cost = TURN_COST;
         synchronized (this) {
             checkThread(e);
             proxy = getProxy(e);
             proxy.direction = proxy.direction.right();
-            if (environment[proxy.position.x][proxy.position.y].inMud) {
+            if (environment.inMud(proxy.location)) {
                 cost += MUD_PENALTY_COST;
             }
             ++proxy.species.turnCount;
@@ -2063,13 +4394,14 @@ public final class Simulator implements javax.swing.Icon {
  
     // DO NOT SYNCHRONIZE
     public void turnLeft(Creature e) {
+        awaitCommit(e, StepCreature.Action.TURN_LEFT);
         Proxy proxy;
         long cost = TURN_COST;
         synchronized (this) {
             checkThread(e);
             proxy = getProxy(e);
             proxy.direction = proxy.direction.left();
-            if (environment[proxy.position.x][proxy.position.y].inMud) {
+            if (environment.inMud(proxy.location)) {
                 cost += MUD_PENALTY_COST;
             }
             ++proxy.species.turnCount;
@@ -2080,16 +4412,18 @@ public final class Simulator implements javax.swing.Icon {
 
     // DO NOT SYNCHRONIZE
     public void emitPheromone(Creature e, String p) {
+        awaitCommit(e, StepCreature.Action.EMIT_PHEROMONE);
         checkThread(e);
         final Proxy proxy = getProxy(e);
         synchronized (this) {
             ++proxy.species.emitCount;
 
             // Override the current pheromone, if any
-            if (p == null) {
-                p = "";
+            if (! environment.setPheromone(proxy.location, p, proxy.species) &&
+                (proxy.species.pheromonesRejected == 1)) {
+                System.err.println("Warning: " + proxy.creature.getClassName() + 
+                                   " reached its pheromone limit; new pheromones will be ignored.");
             }
-            environment[proxy.position.x][proxy.position.y].pheromone = p;
         }
         proxy.endTurn(EMIT_PHEROMONE_COST);
     }
@@ -2097,31 +4431,87 @@ public final class Simulator implements javax.swing.Icon {
 
     // DO NOT SYNCHRONIZE
     public Observation[] observe(Creature e) {
+        awaitCommit(e, StepCreature.Action.OBSERVE);
         checkThread(e);
         final Proxy proxy = getProxy(e);
 
         // Observe occurs at the beginning of the next turn
         proxy.endTurn(OBSERVE_COST);
+        awaitCommit(e);
 
-        ArrayList<Observation> array = new ArrayList<Observation>();
         synchronized (this) {
             ++proxy.species.observeCount;
 
-            Point p = proxy.position;
-            array.add(observe((Point)p.clone()));
-            Observation obs = null;
-            do {
-                // Advance to the new position (this guarantees
-                // that p is a new Point as well)
-                p = proxy.direction.forward(p);
-                
-                obs = observe(p);
-                assert obs != null : "observe(Point) returned null";
-                array.add(obs);
-            } while (inBounds(p) && (obs.type == Type.EMPTY));
+            // Farthest (blocking) square first, this creature last
+            final int distance = observeDistance(proxy);
+            final Observation[] array = new Observation[distance + 1];
+            for (int i = 0; i <= distance; ++i) {
+                array[i] = observe(proxy, distance - i, null);
+            }
+            return array;
+        }
+    }
+
+
+    /** Like observe(Creature), but overwrites the Observations in
+        buffer instead of allocating new ones (null elements are
+        filled with new Observations), and returns the number of
+        squares seen.  If that exceeds buffer.length, only the first
+        buffer.length are stored.
+        @see Creature#observe(Observation[]) */
+    // DO NOT SYNCHRONIZE
+    public int observe(Creature e, Observation[] buffer) {
+        awaitCommit(e, StepCreature.Action.OBSERVE);
+        checkThread(e);
+        final Proxy proxy = getProxy(e);
+
+        // Observe occurs at the beginning of the next turn
+        proxy.endTurn(OBSERVE_COST);
+        awaitCommit(e);
+
+        synchronized (this) {
+            ++proxy.species.observeCount;
+
+            final int distance = observeDistance(proxy);
+            final int n = Math.min(buffer.length, distance + 1);
+            for (int i = 0; i < n; ++i) {
+                buffer[i] = observe(proxy, distance - i, buffer[i]);
+            }
+            return distance + 1;
+        }
+    }
+
+
+    /** Observes only the first non-empty square in front of the
+        creature, storing it in result, and returns its distance.
+        Costs the same as observe.
+        @see Creature#observeAhead */
+    // DO NOT SYNCHRONIZE
+    public int observeAhead(Creature e, Observation result) {
+        assert result != null;
+        awaitCommit(e, StepCreature.Action.OBSERVE);
+        checkThread(e);
+        final Proxy proxy = getProxy(e);
+
+        // Observe occurs at the beginning of the next turn
+        proxy.endTurn(OBSERVE_COST);
+        awaitCommit(e);
+
+        synchronized (this) {
+            ++proxy.species.observeCount;
+
+            final int distance = observeDistance(proxy);
+            observe(proxy, distance, result);
+            return distance;
         }
-        Collections.reverse(array);
-        return array.toArray(new Observation[0]);
+    }
+
+
+    /** Number of steps from proxy to the first square along its
+        facing direction that is not empty or is out of bounds. */
+    private int observeDistance(Proxy proxy) {
+        final int loc = proxy.location;
+        return map.occupancy.distanceToOccupied(xOf(loc), yOf(loc), proxy.direction.dx(), proxy.direction.dy());
     }
 
 
@@ -2138,6 +4528,7 @@ public final class Simulator implements javax.swing.Icon {
     */
     public boolean move(Creature e, int distance) {
         // DO NOT SYNCHRONIZE: this needs to block until the next turn
+        awaitCommit(e, (distance > 0) ? StepCreature.Action.MOVE_FORWARD : StepCreature.Action.MOVE_BACKWARD);
         Proxy proxy;
         boolean result;
         long cost;
@@ -2149,35 +4540,46 @@ public final class Simulator implements javax.swing.Icon {
             
             checkThread(e);
             proxy = getProxy(e);
-            final Point nextPos = proxy.direction.forward(proxy.position, distance);
+            final int nextX = xOf(proxy.location) + proxy.direction.dx() * distance;
+            final int nextY = yOf(proxy.location) + proxy.direction.dy() * distance;
 
-            final boolean wasInMud = environment[proxy.position.x][proxy.position.y].inMud;
+            final boolean wasInMud = environment.inMud(proxy.location);
 
-            if (isEmpty(nextPos)) {
-                map[proxy.position.x][proxy.position.y] = null;
+            if (proxy.vetoed) {
+                // Lost a lockstep conflict
+                result = false;
+            } else if (isEmpty(nextX, nextY)) {
+                map.set(proxy.location, null);
                 
-                proxy.position = nextPos;
-                map[proxy.position.x][proxy.position.y] = e;
+                proxy.location = pack(nextX, nextY);
+                map.set(proxy.location, e);
+
+                if (proxy.isEnchanted) {
+                    lastChangeTime = totalElapsedTime;
+                }
 
                 if (proxy.isEnchanted &&
-                    (environment[proxy.position.x][proxy.position.y].shrineClassId == proxy.creature.getClassId())) {
+                    (environment.shrineClassId(proxy.location) == proxy.creature.getClassId())) {
                     // Moved onto shrine: ascend
                     killLater(proxy);
 
                     // Record the ascension
                     ++proxy.species.ascensions;
+                    if ((proxy.species.ascensions >= NS_ASCENSIONS_TO_WIN) && (ascendedSpecies == null)) {
+                        ascendedSpecies = proxy.species;
+                    }
 
                     // Spawn an apple at a random location
                     spawnEnchantedAppleLater(proxy.totalTimeSinceGameStart);
                 }
                 
                 result = true;
-            } else if (inBounds(nextPos) && 
-                       (map[nextPos.x][nextPos.y].getType() == Type.HAZARD)) {
+            } else if (inBounds(nextX, nextY) && 
+                       (map.get(nextX, nextY).getType() == Type.HAZARD)) {
                 // Moved onto a thorn
                 killLater(proxy);
                 
-                spawnLater(Apple.class, proxy.position, Direction.random(), proxy.isEnchanted, proxy.totalTimeSinceGameStart);
+                spawnLater(Apple.class, proxy.location, Direction.random(), proxy.isEnchanted, proxy.totalTimeSinceGameStart);
                 result = false;
             } else {
                 // Blocked by something else
@@ -2186,7 +4588,7 @@ public final class Simulator implements javax.swing.Icon {
             
             if (distance > 0) {
                 cost = MOVE_FORWARD_COST;
-                if (environment[proxy.position.x][proxy.position.y].inFog) {
+                if (environment.inFog(proxy.location)) {
                     // Moved forward into fog
                     cost += FOG_MOVE_FORWARD_PENTALTY_COST;
                 }
@@ -2209,82 +4611,116 @@ public final class Simulator implements javax.swing.Icon {
 
 
     /**
-       Spawn an apple at a random location, not too near to a shrine or
-       other creature.
+       Spawn an apple at a random location, preferably not too near to
+       a shrine or other creature.
     */
     private void spawnEnchantedAppleLater(long totalTimeSinceGameStart) {
-        // Find an empty location
-        Point p = new Point();
+        final Point p = new Point();
 
-        // Try many times, and then give up
+        // Look for a clear neighborhood a few times, and then settle
+        // for any empty square
         final int NUM_TRIES = 40;
         for (int t = 0; t < NUM_TRIES; ++t) {
-            p.x = Math.min(width - 2, 1 + (int)(Math.random() * (width - 1)));
-            p.y = Math.min(height - 2, 1 + (int)(Math.random() * (height - 1)));
+            if (! randomFreeSquare(p)) {
+                System.err.println("Warning: unable to re-spawn enchanted apple");
+                return;
+            }
 
-            Entity      m = map[p.x][p.y];
-            Environment e = environment[p.x][p.y];
+            if (isNeighborhoodClear(p)) {
+                break;
+            }
+        }
 
+        spawnLater(Apple.class, pack(p.x, p.y), Direction.random(), true, totalTimeSinceGameStart);
+    }
 
-            if ((m == null) && (e.shrineClassId == Creature.UNINITIALIZED_CLASS_ID)) {
-                // This square is empty.  Are the neighbors unoccupied as well?
-                boolean     neighborhoodOk = true;
 
-                for (int dx = -1; dx <= +1; ++dx) {
-                    for (int dy = -1; dy <= +1; ++dy) {
-                        m = map[p.x][p.y];
-                        e = environment[p.x][p.y];
-                        if (((m != null) && ((m.getType() != Type.WALL) || (m.getType() != Type.HAZARD))) || 
-                            (e.shrineClassId != Creature.UNINITIALIZED_CLASS_ID)) {
-                            // There is a shrine or creature too close to this square
-                            neighborhoodOk = false;
-                        }
+    /** Stores a uniformly random empty, non-shrine square in p.
+        Returns false if there is none. */
+    private boolean randomFreeSquare(Point p) {
+        final int n = map.freeCells.size();
+        if (n == 0) {
+            return false;
+        }
+        map.freeCells.select(Math.min(n - 1, (int)(Math.random() * n)), p);
+        return true;
+    }
+
+
+    /** True if no square adjacent to p holds a creature or a shrine */
+    private boolean isNeighborhoodClear(Point p) {
+        for (int dx = -1; dx <= +1; ++dx) {
+            for (int dy = -1; dy <= +1; ++dy) {
+                final int x = p.x + dx;
+                final int y = p.y + dy;
+                if (((dx != 0) || (dy != 0)) && inBounds(x, y)) {
+                    final Entity m = map.get(x, y);
+                    if (((m != null) && (m.getType() != Type.WALL) && (m.getType() != Type.HAZARD)) ||
+                        (environment.shrineClassId(x, y) != Environment.NO_SHRINE)) {
+                        // There is a shrine or creature too close to this square
+                        return false;
                     }
                 }
-                
-                if (neighborhoodOk) {
-                    // Found a good spot to spawn the apple
-                    spawnLater(Apple.class, p, Direction.random(), true, totalTimeSinceGameStart);
-                    return;
-                }
             }
         }
-        
-        System.err.println("Warning: unable to re-spawn enchanged apple");
+        return true;
     }
 
     /** Take the delay action  */
     // DO NOT SYNCHRONIZE: this needs to block until the next turn
     public void delay(Creature c) {
+        awaitCommit(c, StepCreature.Action.DELAY);
         checkThread(c);
         Proxy proxy = getProxy(c);
         proxy.endTurn(DELAY_COST);
     }
 
+
+    /** Called by a creature to execute a plan.  Each action of the
+        plan takes its own turn.
+        @see Creature#execute */
+    // DO NOT SYNCHRONIZE
+    public boolean execute(Creature c, Plan plan) {
+        checkThread(c);
+        final Proxy proxy = getProxy(c);
+        return proxy.executePlan(plan.copy());
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////
 
-    private Observation observe(Point p) {
+    /** Observes the square distance steps in front of viewer.
+        Overwrites obs, or allocates a new Observation if obs is
+        null, and returns it. */
+    private Observation observe(Proxy viewer, int distance, Observation obs) {
         // TODO: add enchantment, shrine
-        if (inBounds(p)) {
-            final Entity  e   = map[p.x][p.y];
-            final boolean f   = environment[p.x][p.y].inFog;
-            final boolean m   = environment[p.x][p.y].inMud;
-            final int     sid = environment[p.x][p.y].shrineClassId;
+        final int loc = viewer.location;
+        final int x = xOf(loc) + viewer.direction.dx() * distance;
+        final int y = yOf(loc) + viewer.direction.dy() * distance;
+
+        if (obs == null) {
+            obs = new Observation();
+        }
+
+        if (inBounds(x, y)) {
+            final Entity  e   = map.get(x, y);
+            final boolean f   = environment.inFog(x, y);
+            final boolean m   = environment.inMud(x, y);
+            final int     sid = environment.shrineClassId(x, y);
             
             if (e == null) {
                 // Empty square
-                return new Observation(p, getTime(), f, m, sid);
+                obs.set(x, y, Type.EMPTY, null, Creature.EMPTY_CLASS_ID, Observation.NO_ID, null, getTime(), f, m, sid);
 
             } else if (e instanceof Creature) {
 
                 final Creature c = (Creature)e;
-                final Proxy proxy = proxyTable.get(c);
+                final Proxy proxy = getProxy(c);
                 final String s = isSecure ? null : c.getClassName();
-                return new Observation(p, s, c.getClassId(), c.getId(), proxy.direction, getTime(), f, m, sid);
+                obs.set(x, y, Type.CREATURE, s, c.getClassId(), c.getId(), proxy.direction, getTime(), f, m, sid);
 
             } else if (e instanceof StaticEntity) {
 
-                return new Observation(p, e.getType(), e.getClassId(), getTime(), f, m, sid);
+                obs.set(x, y, e.getType(), null, e.getClassId(), Observation.NO_ID, null, getTime(), f, m, sid);
 
             } else {
                 assert false : "Internal error; unknown Entity type: " + e;
@@ -2292,8 +4728,11 @@ public final class Simulator implements javax.swing.Icon {
             }
         } else {
             // Out of bounds
-            return new Observation(p, Type.WALL, Creature.WALL_CLASS_ID, getTime());
+            obs.set(x, y, Type.WALL, null, Creature.WALL_CLASS_ID, Observation.NO_ID, null, getTime(),
+                    false, false, Creature.UNINITIALIZED_CLASS_ID);
         }
+
+        return obs;
     }
 
     /** Attack the creature in front of this one. If there is a
@@ -2307,10 +4746,11 @@ public final class Simulator implements javax.swing.Icon {
     */
     // DO NOT SYNCHRONIZE: we must be able to end the turn
     public boolean attack(Creature e) {
+        awaitCommit(e, StepCreature.Action.ATTACK);
         checkThread(e);
         final Proxy proxy = getProxy(e);
         
-        Point attackPos;
+        int attackX, attackY;
         boolean success = false;
         Creature targetCreature = null;
         
@@ -2320,13 +4760,14 @@ public final class Simulator implements javax.swing.Icon {
         synchronized (this) {
             ++proxy.species.attackCount;
 
-            attackPos = proxy.direction.forward(proxy.position);
+            attackX = xOf(proxy.location) + proxy.direction.dx();
+            attackY = yOf(proxy.location) + proxy.direction.dy();
             
-            wasInMud = environment[proxy.position.x][proxy.position.y].inMud;
+            wasInMud = environment.inMud(proxy.location);
 
-            if (inBounds(attackPos)) {
+            if (inBounds(attackX, attackY) && ! proxy.vetoed) {
                 // See what was attacked
-                final Entity target = map[attackPos.x][attackPos.y];
+                final Entity target = map.get(attackX, attackY);
                 if ((target != null) && (target instanceof Creature)) {
                     
                     targetCreature = (Creature)target;
@@ -2344,11 +4785,15 @@ public final class Simulator implements javax.swing.Icon {
         }
 
         if (success) {
-            Proxy targetProxy = proxyTable.get(targetCreature);
+            Proxy targetProxy = getProxy(targetCreature);
 
             if (passEnchantment) {
                 targetProxy.isEnchanted = true;
                 proxy.isEnchanted = false;
+
+                // Enchantment movement counts as a change; see
+                // detectSteadyState
+                lastChangeTime = totalElapsedTime;
             } else {
 
                 killLater(targetProxy);
@@ -2374,7 +4819,7 @@ public final class Simulator implements javax.swing.Icon {
                 } else if (r == 2) {
                     d = d.right();
                 }
-                spawnLater(e.getClass(), attackPos, d, targetProxy.isEnchanted, proxy.totalTimeSinceGameStart + DELAY_COST);
+                spawnLater(e.getClass(), pack(attackX, attackY), d, targetProxy.isEnchanted, proxy.totalTimeSinceGameStart + DELAY_COST);
             }
         }
 
@@ -2397,42 +4842,129 @@ public final class Simulator implements javax.swing.Icon {
     }
 
 
-    /** Kill target creature, removing it from the world. Called from processDeathQueue. */
+    /** Kill target creature, marking it dead and removing it from
+        the world. Called from processDeathQueue. */
     private void kill(Proxy proxy) {
         final Creature creature = proxy.creature;
 
-        decCount(creature.getClass());
+        proxy.dead = true;
+        proxy.meter.exhaust();
+        decCount(proxy.species);
 
         // Remove target from world (this prevents it from taking further actions)
         turnQueue.remove(proxy);
 
-        proxyTable.remove(creature);
-        map[proxy.position.x][proxy.position.y] = null;
+        map.set(proxy.location, null);
+        freeSlot(proxy);
 
-        stopThread(proxy.thread);
+        if (proxy.thread instanceof CreatureThread) {
+            ((CreatureThread)proxy.thread).cancel(proxy.threadJob);
+        } else {
+            stopThread(proxy.thread);
+        }
     }
 
 
-    /** Increments the instance count of creature class c */
-    private void incCount(Class c) {
-        Integer i = creatureCount.get(c);
-        if (i == null) {
-            i = 0;
+    /** Increments the population of species s */
+    private void incCount(Species s) {
+        ++s.population;
+        if (s.population == 1) {
+            ++numSpeciesPresent;
         }
-        creatureCount.put(c, (int)i + 1);
+        ++numPopulationChanges;
+        lastChangeTime = totalElapsedTime;
     }
 
 
-    /** Decrements the count of creature class c */
-    private void decCount(Class c) {
-        int i = (int)creatureCount.get(c);
-        --i;
-        if (i == 0) {
+    /** Decrements the population of species s */
+    private void decCount(Species s) {
+        --s.population;
+        if (s.population == 0) {
             // Removed the last instance of this creature
-            creatureCount.remove(c);
-        } else {
-            creatureCount.put(c, i);
+            --numSpeciesPresent;
+        }
+        ++numPopulationChanges;
+        lastChangeTime = totalElapsedTime;
+    }
+
+
+    /** Called by the simulation thread after each turn.  Sets
+        steadyState if the steadyStateWindow has passed without a
+        change, or if nothing that can still act is able to change
+        the population of a competing species.  That is the case
+        when every creature still taking turns is a Flytrap (the
+        rest have returned from run()) and no Flytrap can reach a
+        competing creature or a Treasure by converting a chain of
+        adjacent ones.
+        Nothing can then move, so there can be no ascension either,
+        and the populations at the time limit will be the ones that
+        there are now. */
+    private void detectSteadyState() {
+        if ((gameMode != GameMode.NATURAL_SELECTION) || steadyState) {
+            return;
+        }
+
+        if ((steadyStateWindow > 0) && (totalElapsedTime - lastChangeTime >= steadyStateWindow)) {
+            steadyState = true;
+            return;
+        }
+
+        // Every Flytrap is in the turnQueue, so a larger queue
+        // contains some other creature
+        final int queueSize = turnQueue.size();
+        if ((queueSize > flytrapSpecies.population) ||
+            ((queueSize == checkedQueueSize) && (numPopulationChanges == checkedPopulationChanges))) {
+            return;
+        }
+        checkedQueueSize = queueSize;
+        checkedPopulationChanges = numPopulationChanges;
+
+        // Search outward from the Flytraps through adjacent creatures
+        final ArrayList<Integer> frontier = new ArrayList<Integer>();
+        final HashSet<Integer>   visited  = new HashSet<Integer>();
+        for (int i = 0; i < numSlots; ++i) {
+            final Proxy proxy = slotTable[i];
+            if ((proxy == null) || proxy.dead) {
+                continue;
+            }
+
+            final boolean isFlytrap = (proxy.creature.getClassId() == Creature.FLYTRAP_CLASS_ID);
+            if (turnQueue.contains(proxy) && ! isFlytrap) {
+                return;
+            } else if (isFlytrap && visited.add(proxy.location)) {
+                frontier.add(proxy.location);
+            }
+        }
+
+        while (! frontier.isEmpty()) {
+            final int location = frontier.remove(frontier.size() - 1);
+            for (Direction d : DIRECTIONS) {
+                final int x = xOf(location) + d.dx();
+                final int y = yOf(location) + d.dy();
+                if (! inBounds(x, y)) {
+                    continue;
+                }
+
+                final Entity e = map.get(x, y);
+                if (e instanceof Creature) {
+                    final int classId = ((Creature)e).getClassId();
+                    if ((classId != Creature.APPLE_CLASS_ID) &&
+                        (classId != Creature.FLYTRAP_CLASS_ID)) {
+                        // A Flytrap can eventually convert this
+                        // creature.  Converting the last Treasure can
+                        // also change the result, to total domination.
+                        return;
+                    }
+
+                    final int next = pack(x, y);
+                    if (visited.add(next)) {
+                        frontier.add(next);
+                    }
+                }
+            }
         }
+
+        steadyState = true;
     }
 
 
@@ -2442,15 +4974,16 @@ public final class Simulator implements javax.swing.Icon {
     private Class[] getMostPopulousSpecies(final int N) {
         
         ArrayList<Class> creatures = new ArrayList<Class>();
-        for (Class c : creatureCount.keySet().toArray(new Class[0])) {
-            if ((c != Flytrap.class) && (c != Treasure.class) && (c != Apple.class)) {
+        for (Species s : speciesTable.values()) {
+            final Class c = s.creatureClass;
+            if ((s.population > 0) && (c != Flytrap.class) && (c != Treasure.class) && (c != Apple.class)) {
                 creatures.add(c);
             }
         }
 
         Collections.sort(creatures, new Comparator<Class>() {
                 public int compare(Class a, Class b) {
-                    return creatureCount.get(b) - creatureCount.get(a);                    
+                    return speciesTable.get(b).population - speciesTable.get(a).population;
                 }
             });
         
@@ -2460,28 +4993,29 @@ public final class Simulator implements javax.swing.Icon {
         return best;
     }
 
-    // Suppresses the thread stop deprecation warning. 
-    @SuppressWarnings("deprecation")
+    /** Interrupts t and stops it shortly afterward on the Reaper's
+        thread. */
     private void stopThread(Thread t) {
+        if (t == null) {
+            return;
+        }
         //assert ! t.holdsLock(this) : 
         //"Thread " + Thread.currentThread().getName() + " tried to stop " + 
         //    "thread " + t.getName() + ", which was locking the simulator.";
         t.interrupt();
-        try {
-            Thread.sleep(1);
-        } catch (java.lang.InterruptedException e) {}
-        t.stop();
+        if (VirtualThreads.isVirtual(t)) {
+            // Virtual threads cannot be stopped; the interrupt
+            // wakes them, and the exhausted Meter of a dead creature
+            // ends its code at the next basic block.
+            return;
+        } else {
+            Reaper.reap(t);
+        }
     }
 
-    // Suppresses the thread stop deprecation warning.
-    @SuppressWarnings("deprecation")
     private void stopThreadGroup(ThreadGroup t) {
         t.interrupt();
-        try {
-            Thread.sleep(1);
-        } catch (java.lang.InterruptedException e) {}
-        t.stop();
-        
+        Reaper.reap(t);
     }
 
     /** Ensures that a creature is alive and running on the right
@@ -2490,12 +5024,12 @@ public final class Simulator implements javax.swing.Icon {
         using another member of its species to execute its moves for
         it. */
     private void checkThread(Creature e) {
-        Proxy proxy = proxyTable.get(e);
+        Proxy proxy = getProxy(e);
         
-        if (proxy == null) {
+        if ((proxy == null) || proxy.dead) {
             throw new ConvertedError("Creature" + e.getClassName() + "_" + e.getId() + 
                             " was prohibited from taking an action because it is dead.");
-        } else if (Thread.currentThread() != proxy.thread) {
+        } else if (! proxy.isRunning()) {
             throw new Error(proxy.thread + " tried to take an action on " + 
                             Thread.currentThread() + "'s turn.");
         }
@@ -2506,10 +5040,85 @@ public final class Simulator implements javax.swing.Icon {
         }
     }
 
+    /** Called by anything that a creature can call to learn about
+        the world outside of itself, before looking at it.  Waits for
+        the creatures ahead of e in a parallel batch to finish their
+        turns.  In a lockstep tick the world does not change while
+        creatures choose their actions, so this does not wait.  Must
+        not be called while holding the lock on this.
+        @see #oneBatch */
+    private void awaitCommit(Creature e) {
+        final Proxy proxy = getProxy(e);
+        if (! lockstep && (proxy != null) && proxy.gated && proxy.isRunning()) {
+            proxy.awaitCommit();
+        }
+    }
+
+
+    /** Called at the start of each action, before looking at the
+        world.  Like awaitCommit(e), but in a lockstep tick reports
+        the action to the simulator and waits until it is time to
+        take it.
+        @see #oneTick */
+    private void awaitCommit(Creature e, StepCreature.Action action) {
+        final Proxy proxy = getProxy(e);
+        if ((proxy != null) && proxy.gated && proxy.isRunning()) {
+            proxy.awaitCommit(action);
+        }
+    }
+
+
+    /** Returns the Species of e, or null if e is not in this
+        simulator. */
+    Species getSpecies(Creature e) {
+        final Proxy proxy = getProxy(e);
+        return (proxy == null) ? null : proxy.species;
+    }
+
+
     /** Returns the underlying object (if mutated, that will affect
         the Creature.) */
     private Proxy getProxy(Creature e) {
-        return proxyTable.get(e);
+        final Proxy[] table = slotTable;
+        final int slot = e.getSlot();
+        if ((slot < 0) || (slot >= table.length)) {
+            return null;
+        }
+
+        final Proxy proxy = table[slot];
+
+        // A dead creature's slot may have been given to a newer one
+        return ((proxy != null) && (proxy.creature == e)) ? proxy : null;
+    }
+
+
+    /** Assigns proxy a free slot, reusing those of dead creatures
+        first so that slotTable stays dense. */
+    private void allocateSlot(Proxy proxy) {
+        int slot;
+        if (numFreeSlots > 0) {
+            slot = freeSlots[--numFreeSlots];
+        } else {
+            if (numSlots == slotTable.length) {
+                final Proxy[] table = new Proxy[numSlots * 2];
+                System.arraycopy(slotTable, 0, table, 0, numSlots);
+                slotTable = table;
+                freeSlots = new int[table.length];
+            }
+            slot = numSlots;
+            ++numSlots;
+        }
+        proxy.slot = slot;
+        slotTable[slot] = proxy;
+    }
+
+
+    /** Returns proxy's slot for reuse by a future spawn. */
+    private void freeSlot(Proxy proxy) {
+        assert slotTable[proxy.slot] == proxy;
+        slotTable[proxy.slot] = null;
+        freeSlots[numFreeSlots] = proxy.slot;
+        ++numFreeSlots;
     }
 
     /** A creature's thread can't be stopped without potentially
@@ -2521,20 +5130,22 @@ public final class Simulator implements javax.swing.Icon {
     */
     public boolean isAlive(Creature c) {
         // Not synchronized because this must be called from oneTurn
-        return (proxyTable.get(c) != null);
+        final Proxy proxy = getProxy(c);
+        return (proxy != null) && ! proxy.dead;
     }
 
 
     /** Schedule this creature to be spawned, but don't do it on the
      current thread.  Call this when the game is running and you want
      to spawn a creature that is not an Apple or Treasure.*/
-    private void spawnLater(Class c, Point p, Direction d, boolean enchanted, long initialCPUTime) {
-        spawnQueue.add(new DelayedSpawn(c, p, d, enchanted, initialCPUTime));
+    private void spawnLater(Class c, int location, Direction d, boolean enchanted, long initialCPUTime) {
+        spawnQueue.add(new DelayedSpawn(c, location, d, enchanted, initialCPUTime));
     }
 
 
-    /** Invokes onDeath on a new thread that does not affect game time
-        and may run for the normal KILL_TIME limit. */
+    /** Invokes onDeath on a pooled thread that does not affect game
+        time and may run for the normal KILL_TIME limit.  The game
+        waits for it. */
     private void invokeOnDeathMethod(final Proxy proxy) {
         // Don't put this thread in a threadgroup...Java doesn't seem
         // to collect the threads that are forced to stop if they are
@@ -2546,19 +5157,9 @@ public final class Simulator implements javax.swing.Icon {
 
         final WorkerThread deathThread = threadPool.allocate();
         deathThread.startJob(deathJob);
-        
-        // Launch death thread, but monitor its running time
-        final long wallClockStart = System.nanoTime();
-        long elapsedWallTime;
-        do {
-            // The simulator thread is busy-waiting, so yield its quantum
-            Thread.yield();
-            try { nanoSleep(1000); } catch (Exception e) {}
-                
-            elapsedWallTime = System.nanoTime() - wallClockStart;
-                
-        } while (deathThread.working() && (elapsedWallTime < KILL_TIME));
 
+        // Block until onDeath returns or runs out of time
+        deathThread.awaitIdle(KILL_TIME);
 
         if (deathThread.getState() == Thread.State.BLOCKED) {
             // Give the programmer some more information.
@@ -2579,11 +5180,14 @@ public final class Simulator implements javax.swing.Icon {
     }
 
 
-    /** Called at the end of oneTurn() */
+    /** Called at the end of oneTurn().  Species that inherit the
+        empty Creature.onDeath need no death thread. */
     private void processDeathQueue() {
-        assert Thread.currentThread() == simThread;
+        assert (! live) || (Thread.currentThread() == simThread);
         for (Proxy proxy : deathQueue) {
-            invokeOnDeathMethod(proxy);
+            if (proxy.species.overridesOnDeath) {
+                invokeOnDeathMethod(proxy);
+            }
             kill(proxy);
         }
         deathQueue.clear();
@@ -2592,46 +5196,69 @@ public final class Simulator implements javax.swing.Icon {
 
     /** Called at the end of oneTurn() */
     private void processSpawnQueue() {
-        assert Thread.currentThread() == simThread;
+        assert (! live) || (Thread.currentThread() == simThread);
         for (DelayedSpawn d : spawnQueue) {
-            d.proxy = spawn(d.creatureClass, d.point, d.direction, d.isEnchanted, d.initialCPUTime);
+            d.proxy = spawn(d.creatureClass, d.location, d.direction, d.isEnchanted, d.initialCPUTime);
         }
         
         // Allow each spawned creature to take a turn
         for (DelayedSpawn d : spawnQueue) {
-            oneTurn(d.proxy);
+            if (d.proxy != null) {
+                // Not a failed spawn
+                oneTurn(d.proxy);
+            }
         }
 
         spawnQueue.clear();
     }
 
 
-    /** Spawns a Creature of class c at position p. c must be a
+    /** Spawns a Creature of class c at packed square location. c must be a
         subclass of Creature.
 
         Creates the Proxy for the creature and inserts it into the
         world.  When this returns the Creature's thread is either
-        Thread.State.BLOCKED or Thread.State.TERMINATED.
+        Thread.State.BLOCKED or Thread.State.TERMINATED, unless the
+        map is loading, in which case awaitInitialSpawns waits for it.
 
         @see makeCreatureThread 
     */
-    private Proxy spawn(Class c, Point p, Direction d, boolean enchanted, long initialCPUTime) {
+    private Proxy spawn(Class c, int location, Direction d, boolean enchanted, long initialCPUTime) {
         assert (! live) || (Thread.currentThread() == simThread) :
         "Do not call spawn from a creature's thread--they could deadlock.";
 
         assert (! live) || (! Thread.currentThread().holdsLock(performanceLock)) :
         "Do not call spawn while holding the performanceLock--it could deadlock with the renderer.";
 
-        assert inBounds(p);
-        assert map[p.x][p.y] == null;
+        assert inBounds(xOf(location), yOf(location));
+        assert map.get(location) == null;
 
         Creature creature = null;
         
-        incCount(c);
+        final Species species = speciesTable.get(c);
+        incCount(species);
 
         // Instantiate it
         try {
-            creature = (Creature)c.newInstance();
+            if (species.constructor == null) {
+                species.constructor = ((Class<?>)c).getConstructor();
+            }
+            creature = (Creature)species.constructor.newInstance();
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            // Thrown by the constructor
+            final Throwable cause = e.getCause();
+            if (cause instanceof NoClassDefFoundError) {
+                System.err.println(c.getName() + " tried to access a prohibited class, or " + 
+                                   "one not found in the CLASSPATH, and was" +
+                                   " prevented from spawning. (" + cause + ")");
+            } else {
+                cause.printStackTrace();
+            }
+            return null;
+        } catch (NoSuchMethodException e) {
+            System.err.println(c.getName() + " has no public constructor without arguments" +
+                               " and cannot be spawned.");
+            return null;
         } catch (ClassCastException e) {
             System.err.println("Spawned creature was not a Creature");
             return null;
@@ -2659,21 +5286,40 @@ public final class Simulator implements javax.swing.Icon {
 
 
         // Insert into the world
-        final Species species = speciesTable.get(c);
-        final Proxy proxy = new Proxy(p, d, null, creature, species, enchanted, initialCPUTime);
-        proxy.thread = makeCreatureThread(proxy, creature, nextID);
-        proxyTable.put(creature, proxy);
-        map[p.x][p.y] = creature;
+        final Proxy proxy = new Proxy(location, d, null, creature, species, enchanted, initialCPUTime);
+        if (creature instanceof StepCreature) {
+            proxy.stepper = (StepCreature)creature;
+        } else if (intrinsicsEnabled && 
+                   ((c == Apple.class) || (c == Treasure.class) || (c == Flytrap.class))) {
+            proxy.isIntrinsic = true;
+        } else if (executionMode == ExecutionMode.SINGLE_THREADED) {
+            proxy.continuation = Continuations.create(makeCreatureRunnable(proxy, creature));
+        } else {
+            proxy.thread = makeCreatureThread(proxy, creature, nextID);
+        }
+        allocateSlot(proxy);
+        map.set(location, creature);
         ++nextID;
 
         // Cannot set the simulator until after the creature is
         // inserted into the world because creatures immediately ask
         // for their own position.
-        creature.setSimulator(this, nextID, species.classId);
+        creature.setSimulator(this, nextID, species.classId, proxy.slot);
 
         // Start simulating the creature, which will immediately
         // force it into a wait call so that it is ready to be woken.
-        proxy.thread.start();
+        // The creature holds the turn until that first endTurn.
+        proxy.beginTurn();
+        if (proxy.thread != null) {
+            startCreatureThread(proxy);
+        }
+
+        if (initialSpawns != null) {
+            // Loading the map; awaitInitialSpawns waits for the
+            // first endTurn
+            initialSpawns.add(proxy);
+            return proxy;
+        }
 
         // Disable the assertion in oneTurn that verifies that we
         // don't have the simulator locked.
@@ -2693,20 +5339,15 @@ public final class Simulator implements javax.swing.Icon {
 
 
     /** Returns true if this location is on the map. */
-    private boolean inBounds(Point p) {
-        return inBounds(p.x, p.y);
-    }
-
-
     private boolean inBounds(int x, int y) {
         return (x >= 0) && (y >= 0) && (x < width) && (y < height);
     }
 
 
     /** Returns true if the position is out of bounds or empty. */
-    private boolean isEmpty(Point p) {
-        if (inBounds(p)) {
-            Entity e = map[p.x][p.y];
+    private boolean isEmpty(int x, int y) {
+        if (inBounds(x, y)) {
+            Entity e = map.get(x, y);
             return e == null;
         } else {
             // Out of bounds is not empty
@@ -2864,7 +5505,7 @@ public final class Simulator implements javax.swing.Icon {
 
         for (int y = 0; y < height; ++y) {
             for (int x = 0; x < width; ++x) {
-                drawEntity3D(g, map[x][y], x, y);
+                drawEntity3D(g, map.get(x, y), x, y);
             }
         }
     }
@@ -2872,16 +5513,17 @@ public final class Simulator implements javax.swing.Icon {
 
     private void drawEntity3D(Graphics2D g, Entity e, int x, int y) {
         Image im = null;
-        final Environment env = environment[x][y];
+        final int shrineClassId = environment.shrineClassId(x, y);
+        final String pheromone  = environment.getPheromone(x, y);
 
         if (DRAW_FLOOR) {
-            if (env.inMud) {
+            if (environment.inMud(x, y)) {
                 drawImage3D(g, x, y, StaticEntity.mud.image);
             } else {
                 drawImage3D(g, x, y, StaticEntity.floor.image);
             }
 
-            if (env.shrineClassId != Creature.UNINITIALIZED_CLASS_ID) {
+            if (shrineClassId != Creature.UNINITIALIZED_CLASS_ID) {
                 // Draw the shrine
 
                 // Translate
@@ -2889,7 +5531,7 @@ public final class Simulator implements javax.swing.Icon {
                 final int   ty = projectY(x, y);
 
                 // Lines coming out of the shrine
-                Color color = getCreatureColor(env.shrineClassId);
+                Color color = getCreatureColor(shrineClassId);
                 g.setColor(color);
                 final int N = 10;
                 for (int i = 0; i < N; ++i) {
@@ -2908,14 +5550,14 @@ public final class Simulator implements javax.swing.Icon {
                 g.setColor(Color.BLACK);
                 g.drawOval(tx - XSCALE_3D, ty - (int)(YSCALE_3D * 1.6), XSCALE_3D, YSCALE_3D);
 
-                g.setColor(getCreatureColor(env.shrineClassId));
+                g.setColor(getCreatureColor(shrineClassId));
                 g.fillOval(tx - XSCALE_3D, ty - (int)(YSCALE_3D * 2.0), XSCALE_3D, YSCALE_3D);
                 g.setColor(Color.BLACK);
                 g.drawOval(tx - XSCALE_3D, ty - (int)(YSCALE_3D * 2.0), XSCALE_3D, YSCALE_3D);
             }
         }
 
-        if (env.pheromone.length() > 0) {
+        if (pheromone.length() > 0) {
             // Draw pheromone
 
             // Translate
@@ -2928,7 +5570,7 @@ public final class Simulator implements javax.swing.Icon {
             g.rotate(a);
             g.setColor(PHEROMONE_SHADOW_COLOR);
 
-            String s = env.pheromone.substring(0, 1);
+            String s = pheromone.substring(0, 1);
             g.drawString(s, -1, 1);
             g.setColor(PHEROMONE_COLOR);
             g.drawString(s, 0, 0);
@@ -2940,7 +5582,7 @@ public final class Simulator implements javax.swing.Icon {
             im = ((StaticEntity)e).image;
         } else if (e instanceof Creature) {
             Creature c = (Creature)e;
-            Proxy proxy = proxyTable.get(c);
+            Proxy proxy = getProxy(c);
             im = getImage(c, proxy.direction);
 
             if (proxy.isEnchanted) {
@@ -2968,7 +5610,7 @@ public final class Simulator implements javax.swing.Icon {
 
         drawImage3D(g, x, y, im);
 
-        if (env.inFog) {
+        if (environment.inFog(x, y)) {
             drawImage3D(g, x, y, StaticEntity.fog);
         }
 
@@ -3098,7 +5740,7 @@ public final class Simulator implements javax.swing.Icon {
 
         for (int y = 0; y < height; ++y) {
             for (int x = 0; x < width; ++x) {
-                drawEntity2D(g, map[x][y], x, y);
+                drawEntity2D(g, map.get(x, y), x, y);
             }
         }
 
@@ -3115,15 +5757,16 @@ public final class Simulator implements javax.swing.Icon {
     private static final Color MUD_COLOR_2D    = new Color(90, 55, 0, 200);
 
     private void drawEntity2D(Graphics2D g, Entity e, int x, int y) {
-        final Environment env = environment[x][y];
+        final int shrineClassId = environment.shrineClassId(x, y);
+        final String pheromone  = environment.getPheromone(x, y);
 
-        if (env.inMud) {
+        if (environment.inMud(x, y)) {
             g.setColor(MUD_COLOR_2D);
             g.fillRect(x * SCALE_2D + 1, y * SCALE_2D + 1, SCALE_2D, SCALE_2D);
         }
 
-        if (env.shrineClassId != Creature.UNINITIALIZED_CLASS_ID) {
-            g.setColor(getCreatureColor(env.shrineClassId));
+        if (shrineClassId != Creature.UNINITIALIZED_CLASS_ID) {
+            g.setColor(getCreatureColor(shrineClassId));
             g.fillOval(x * SCALE_2D + 2, y * SCALE_2D + 2, SCALE_2D - 3, SCALE_2D - 3);
             g.setColor(Color.WHITE);
             g.drawOval(x * SCALE_2D + 2, y * SCALE_2D + 2, SCALE_2D - 3, SCALE_2D - 3);
@@ -3149,12 +5792,12 @@ public final class Simulator implements javax.swing.Icon {
             drawCreature2D(g, e, x, y);
         }
 
-        if (env.pheromone.length() > 0) {
+        if (pheromone.length() > 0) {
             g.setColor(PHEROMONE_COLOR);
             g.fillRect(x * SCALE_2D + 1, y * SCALE_2D + 1 + SCALE_2D / 2, SCALE_2D, SCALE_2D/2);
         }
 
-        if (env.inFog) {
+        if (environment.inFog(x, y)) {
             g.setColor(FOG_COLOR_2D);
             g.fillRect(x * SCALE_2D + 1, y * SCALE_2D + 1, SCALE_2D, SCALE_2D);
         }
@@ -3164,7 +5807,7 @@ public final class Simulator implements javax.swing.Icon {
     private void drawCreature2D(Graphics2D g, Entity e, int x, int y) {
         char label = e.getLabel();
 
-        Proxy info = proxyTable.get(e);
+        Proxy info = getProxy((Creature)e);
         Direction d = info.direction;
         g.setColor(getCreatureColor(e.getClass()));
 
@@ -3363,9 +6006,12 @@ public final class Simulator implements javax.swing.Icon {
 
     private void prepareClassIds() {
         speciesTable = new HashMap<Class, Species>();
-        speciesTable.put(Apple.class, new Species(Apple.class, Creature.APPLE_CLASS_ID));
-        speciesTable.put(Flytrap.class, new Species(Flytrap.class, Creature.FLYTRAP_CLASS_ID));
-        speciesTable.put(Treasure.class, new Species(Treasure.class, Creature.TREASURE_CLASS_ID));
+        appleSpecies    = new Species(Apple.class, Creature.APPLE_CLASS_ID);
+        flytrapSpecies  = new Species(Flytrap.class, Creature.FLYTRAP_CLASS_ID);
+        treasureSpecies = new Species(Treasure.class, Creature.TREASURE_CLASS_ID);
+        speciesTable.put(Apple.class, appleSpecies);
+        speciesTable.put(Flytrap.class, flytrapSpecies);
+        speciesTable.put(Treasure.class, treasureSpecies);
     }
 
     private int getClassId(Class creatureClass) {
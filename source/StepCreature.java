@@ -0,0 +1,212 @@
+/*
+StepCreature.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ Extend this class instead of Creature to write a Creature as a state
+ machine.
+
+ <p>Rather than looping in {@link #run}, a StepCreature overrides
+ {@link #step}, which returns the single {@link Action} to take on
+ this turn.  The simulator calls step() directly from its own thread,
+ so a StepCreature has no thread of its own and each turn costs only
+ a method call.  Actions cost exactly what they do for any other
+ Creature, and the time spent in step() is charged as computation
+ time.  StepCreatures and ordinary Creatures can play in the same
+ match.
+
+ <p>step() cannot be interrupted, so a StepCreature that exceeds
+ {@link Simulator#KILL_TIME} is only converted into an Apple after
+ step() returns, and one whose step() never returns hangs the match.
+
+ <p>The result of the previous action is available from {@link
+ #lastActionSucceeded} and {@link #lastObservation}.  Do not call the
+ action methods (moveForward(), attack(), ...) from step(); a
+ StepCreature that takes more than one action in a step is stopped.
+
+ <p>Example:
+<pre>
+<font color=888888>
+public class StepRover extends StepCreature {
+    public Action step() {
+</font>
+        if (lastAction() == Action.MOVE_FORWARD &amp;&amp; ! lastActionSucceeded()) {
+            return Action.ATTACK;
+        } else if (lastAction() == Action.ATTACK) {
+            return Action.TURN_LEFT;
+        } else {
+            return Action.MOVE_FORWARD;
+        }
+<font color=888888>
+    }
+ }
+</font></pre>
+</p>
+
+ @see Creature
+ */
+public abstract class StepCreature extends Creature {
+
+    /** The actions that step() may return. */
+    public enum Action {
+        /** @see Creature#moveForward() */
+        MOVE_FORWARD,
+
+        /** @see Creature#moveBackward() */
+        MOVE_BACKWARD,
+
+        /** @see Creature#turnLeft() */
+        TURN_LEFT,
+
+        /** @see Creature#turnRight() */
+        TURN_RIGHT,
+
+        /** @see Creature#attack() */
+        ATTACK,
+
+        /** @see Creature#observe() */
+        OBSERVE,
+
+        /** @see Creature#delay() */
+        DELAY,
+
+        /** Emits the string most recently passed to {@link #setPheromone}.
+            @see Creature#emitPheromone */
+        EMIT_PHEROMONE
+    }
+
+    /** Action performed on the previous turn, or null before the first. */
+    private Action        lastAction;
+
+    private boolean       lastActionSucceeded = true;
+
+    private Observation[] lastObservation;
+
+    private String        pheromone = "";
+
+    /** Action returned by chooseStep and not yet taken, or null. */
+    private Action        chosenAction;
+
+    protected StepCreature() { }
+
+    /** Override this method to make your creature think.  Called
+        once per turn; the returned action is then taken.  Must not
+        return null. */
+    abstract public Action step();
+
+    /** The action taken on the previous turn, or null on the first turn. */
+    protected Action lastAction() {
+        return lastAction;
+    }
+
+    /** True if the previous MOVE_FORWARD, MOVE_BACKWARD, or ATTACK
+        succeeded.  True after any other action. */
+    protected boolean lastActionSucceeded() {
+        return lastActionSucceeded;
+    }
+
+    /** The result of the most recent OBSERVE action, or null if this
+        creature has never observed. */
+    protected Observation[] lastObservation() {
+        return lastObservation;
+    }
+
+    /** Sets the string emitted by subsequent EMIT_PHEROMONE actions. */
+    protected void setPheromone(String s) {
+        pheromone = s;
+    }
+
+    /** Calls step() and returns the action that the next takeStep
+        will take.  Invoked by the simulator in lockstep mode, where
+        every creature chooses its action before any is taken; do not
+        call this yourself.
+        @see Simulator#setLockstep */
+    final Action chooseStep() {
+        final Action action = step();
+        if (action == null) {
+            throw new NullPointerException(getClassName() + ".step() returned null.");
+        }
+        chosenAction = action;
+        return action;
+    }
+
+    /** Takes the action chosen by chooseStep, or calls step() and
+        takes the action that it returns.  Invoked by the simulator;
+        do not call this yourself. */
+    final void takeStep() {
+        final Action action = (chosenAction != null) ? chosenAction : chooseStep();
+        chosenAction = null;
+
+        boolean succeeded = true;
+        switch (action) {
+        case MOVE_FORWARD:
+            succeeded = moveForward();
+            break;
+
+        case MOVE_BACKWARD:
+            succeeded = moveBackward();
+            break;
+
+        case TURN_LEFT:
+            turnLeft();
+            break;
+
+        case TURN_RIGHT:
+            turnRight();
+            break;
+
+        case ATTACK:
+            succeeded = attack();
+            break;
+
+        case OBSERVE:
+            lastObservation = observe();
+            break;
+
+        case DELAY:
+            delay();
+            break;
+
+        case EMIT_PHEROMONE:
+            emitPheromone(pheromone);
+            break;
+        }
+
+        lastAction = action;
+        lastActionSucceeded = succeeded;
+    }
+
+    /** The simulator does not call run() on a StepCreature.  If a
+        StepCreature is run on a thread like an ordinary Creature, it
+        steps forever. */
+    final public void run() {
+        while (true) {
+            takeStep();
+        }
+    }
+}
@@ -125,7 +125,11 @@ public class Tournament extends JFrame implements Icon {
 
             // Force the icon to repaint, showing the result
             Tournament.this.repaint();
-            simulator.stop();
+
+            // The simulation thread stops the match itself
+            try {
+                simulator.join();
+            } catch (InterruptedException e) {}
             return result;
         }
     }
@@ -886,6 +890,8 @@ public class Tournament extends JFrame implements Icon {
 
     public static void main(String[] arg) {
         System.setProperty("com.apple.mrj.application.apple.menu.about.name", "Hello World!");
+        Simulator.setPheromoneLimits(Simulator.TOURNAMENT_MAX_PHEROMONES,
+                                     Simulator.TOURNAMENT_MAX_PHEROMONE_BYTES);
 
         String mapfile = arg[0];
         String[] creatures = new String[arg.length - 1];
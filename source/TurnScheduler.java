@@ -0,0 +1,417 @@
+/*
+TurnScheduler.java
+
+Copyright (c) 2009-2012, Morgan McGuire
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ Orders creatures for the simulator by the game time at which each
+ will next act, smallest first.  Unlike java.util.PriorityQueue, an
+ entry's time may change while it is queued; {@link #update} then
+ restores the order without searching for the entry.
+
+ <p>Entries with the same time are ordered by when they were last
+ added or updated, earliest first, so every implementation produces
+ the same order.
+
+ <p>Two implementations are provided: {@link IndexedHeap}, a binary
+ heap that tracks each entry's position (O(log n) per operation), and
+ {@link CalendarQueue}, a bucketed calendar queue that is O(1) on
+ average when, as in Darwin, times advance steadily.
+
+ @see Simulator#setSchedulerMode
+ */
+public abstract class TurnScheduler<T extends TurnScheduler.Entry> {
+
+    /** Base class of the objects that a TurnScheduler orders.
+        Holds the scheduler's bookkeeping so that no lookup is
+        needed to find an entry. */
+    public static abstract class Entry {
+        /** Position in the heap or calendar bucket; -1 when not queued */
+        int   index = -1;
+
+        /** Neighbors in a CalendarQueue bucket */
+        Entry prev;
+        Entry next;
+
+        /** Breaks ties between equal times; see schedule() */
+        long  sequence;
+
+        /** The time at which this entry next acts */
+        abstract public long getScheduledTime();
+    }
+
+    /** Source of Entry.sequence */
+    private long nextSequence = 0;
+
+    /** Called when e is added or updated.  Places e after every other
+        entry with the same time. */
+    protected void schedule(Entry e) {
+        e.sequence = nextSequence;
+        ++nextSequence;
+    }
+
+    /** True if a acts before b. */
+    static protected boolean before(Entry a, Entry b) {
+        final long ta = a.getScheduledTime();
+        final long tb = b.getScheduledTime();
+        return (ta < tb) || ((ta == tb) && (a.sequence < b.sequence));
+    }
+
+    /** Adds e, which must not already be queued. */
+    abstract public void add(T e);
+
+    /** Adds e back after remove(e), in the same place among entries
+        with its time.  e's time must not have changed since it was
+        removed. */
+    abstract public void restore(T e);
+
+    /** Removes e if it is queued. */
+    abstract public void remove(T e);
+
+    /** Restores the order after e's time changed.  Adds e if it is
+        not queued. */
+    abstract public void update(T e);
+
+    /** The entry with the smallest time, or null if empty. */
+    abstract public T peek();
+
+    abstract public int size();
+
+    abstract public void clear();
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** True if e is in a TurnScheduler (which is assumed to be this one). */
+    public boolean contains(T e) {
+        return e.index >= 0;
+    }
+
+
+    /** Binary min-heap in which every entry knows its position. */
+    public static class IndexedHeap<T extends Entry> extends TurnScheduler<T> {
+        private Entry[] heap = new Entry[16];
+        private int     size = 0;
+
+        public void add(T e) {
+            schedule(e);
+            restore(e);
+        }
+
+        public void restore(T e) {
+            assert e.index == -1 : "Entry is already queued";
+            if (size == heap.length) {
+                final Entry[] old = heap;
+                heap = new Entry[old.length * 2];
+                System.arraycopy(old, 0, heap, 0, size);
+            }
+            heap[size] = e;
+            e.index = size;
+            ++size;
+            siftUp(e.index);
+        }
+
+        public void remove(T e) {
+            final int i = e.index;
+            if (i < 0) {
+                return;
+            }
+            e.index = -1;
+
+            --size;
+            if (i < size) {
+                // Move the last entry into the hole
+                final Entry last = heap[size];
+                heap[i] = last;
+                last.index = i;
+                heap[size] = null;
+                siftDown(siftUp(i));
+            } else {
+                heap[size] = null;
+            }
+        }
+
+        public void update(T e) {
+            if (e.index < 0) {
+                add(e);
+            } else {
+                schedule(e);
+                siftDown(siftUp(e.index));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public T peek() {
+            return (size == 0) ? null : (T)heap[0];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            for (int i = 0; i < size; ++i) {
+                heap[i].index = -1;
+                heap[i] = null;
+            }
+            size = 0;
+        }
+
+        /** Returns the final position of the entry at i. */
+        private int siftUp(int i) {
+            final Entry e = heap[i];
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                final Entry p = heap[parent];
+                if (! before(e, p)) {
+                    break;
+                }
+                heap[i] = p;
+                p.index = i;
+                i = parent;
+            }
+            heap[i] = e;
+            e.index = i;
+            return i;
+        }
+
+        private void siftDown(int i) {
+            final Entry e = heap[i];
+            final int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                Entry c = heap[child];
+                final int right = child + 1;
+                if ((right < size) && before(heap[right], c)) {
+                    child = right;
+                    c = heap[child];
+                }
+                if (! before(c, e)) {
+                    break;
+                }
+                heap[i] = c;
+                c.index = i;
+                i = child;
+            }
+            heap[i] = e;
+            e.index = i;
+        }
+    }
+
+
+    /** Calendar queue (R. Brown, CACM 1988).  Time is divided into
+        buckets of equal width that wrap around like the days of a
+        year; each bucket holds a sorted list of the entries that fall
+        on that day of any year.  The queue resizes so that buckets
+        hold about one entry each. */
+    public static class CalendarQueue<T extends Entry> extends TurnScheduler<T> {
+        static private final int MIN_BUCKETS = 16;
+
+        private Entry[] bucket;
+        private int     mask;
+        private long    width;
+        private int     size;
+
+        /** The search for the minimum resumes at this bucket... */
+        private int     current;
+
+        /** ...whose range in the current year ends at this time.  No
+            queued entry has a time before bucketTop - width. */
+        private long    bucketTop;
+
+        public CalendarQueue() {
+            clear();
+        }
+
+        public void add(T e) {
+            schedule(e);
+            restore(e);
+        }
+
+        public void restore(T e) {
+            assert e.index == -1 : "Entry is already queued";
+            insert(e);
+            ++size;
+            if (size > 2 * bucket.length) {
+                resize(bucket.length * 2);
+            }
+        }
+
+        public void remove(T e) {
+            if (e.index < 0) {
+                return;
+            }
+            unlink(e);
+            --size;
+            if ((size < bucket.length / 2) && (bucket.length > MIN_BUCKETS)) {
+                resize(bucket.length / 2);
+            }
+        }
+
+        public void update(T e) {
+            if (e.index < 0) {
+                add(e);
+            } else {
+                unlink(e);
+                schedule(e);
+                insert(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public T peek() {
+            if (size == 0) {
+                return null;
+            }
+
+            // Scan one year forward from the current bucket
+            int  i   = current;
+            long top = bucketTop;
+            for (int n = 0; n < bucket.length; ++n) {
+                final Entry e = bucket[i];
+                if ((e != null) && (e.getScheduledTime() < top)) {
+                    current   = i;
+                    bucketTop = top;
+                    return (T)e;
+                }
+                i = (i + 1) & mask;
+                top += width;
+            }
+
+            // Nothing in the coming year: jump directly to the minimum
+            Entry min = null;
+            for (Entry e : bucket) {
+                if ((e != null) && ((min == null) || (e.getScheduledTime() < min.getScheduledTime()))) {
+                    min = e;
+                }
+            }
+            setCurrent(min.getScheduledTime());
+            return (T)min;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            if (bucket != null) {
+                for (Entry head : bucket) {
+                    for (Entry e = head; e != null; e = e.next) {
+                        e.index = -1;
+                    }
+                }
+            }
+            bucket    = new Entry[MIN_BUCKETS];
+            mask      = MIN_BUCKETS - 1;
+            width     = Simulator.MOVE_FORWARD_COST;
+            size      = 0;
+            setCurrent(0);
+        }
+
+        /** Makes the bucket containing time t current. */
+        private void setCurrent(long t) {
+            current   = (int)((t / width) & mask);
+            bucketTop = (t / width + 1) * width;
+        }
+
+        /** Inserts e into its bucket in sorted order (see before),
+            without changing size. */
+        private void insert(Entry e) {
+            final long t = e.getScheduledTime();
+            final int i = (int)((t / width) & mask);
+            e.index = i;
+
+            Entry prev = null;
+            Entry next = bucket[i];
+            while ((next != null) && before(next, e)) {
+                prev = next;
+                next = next.next;
+            }
+            e.prev = prev;
+            e.next = next;
+            if (prev == null) {
+                bucket[i] = e;
+            } else {
+                prev.next = e;
+            }
+            if (next != null) {
+                next.prev = e;
+            }
+
+            if (t < bucketTop - width) {
+                // Earlier than anything else; the search must start here
+                setCurrent(t);
+            }
+        }
+
+        private void unlink(Entry e) {
+            if (e.prev == null) {
+                bucket[e.index] = e.next;
+            } else {
+                e.prev.next = e.next;
+            }
+            if (e.next != null) {
+                e.next.prev = e.prev;
+            }
+            e.prev  = null;
+            e.next  = null;
+            e.index = -1;
+        }
+
+        /** Rebuilds with n buckets, choosing the bucket width from the
+            spread of the queued times. */
+        private void resize(int n) {
+            final Entry[] all = new Entry[size];
+            int k = 0;
+            long lo = Long.MAX_VALUE;
+            long hi = Long.MIN_VALUE;
+            for (Entry head : bucket) {
+                for (Entry e = head; e != null; ) {
+                    final Entry next = e.next;
+                    e.prev = null;
+                    e.next = null;
+                    all[k++] = e;
+                    lo = Math.min(lo, e.getScheduledTime());
+                    hi = Math.max(hi, e.getScheduledTime());
+                    e = next;
+                }
+            }
+
+            bucket = new Entry[n];
+            mask   = n - 1;
+            if (k > 1) {
+                // About three entries' worth of time per bucket
+                width = Math.max(1, 3 * ((hi - lo) / k));
+            }
+            setCurrent((k > 0) ? lo : 0);
+            for (int i = 0; i < k; ++i) {
+                insert(all[i]);
+            }
+        }
+    }
+}